@@ -2,19 +2,21 @@ package client;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Optional;
 
+import commands.BinaryCodec;
 import commands.Command;
 import commands.clientsent.CreateRoomCommand;
 import commands.clientsent.DisconnectCommand;
+import commands.clientsent.ListRoomsCommand;
 import commands.clientsent.RequestNameCommand;
+import commands.clientsent.SearchRoomsCommand;
 import commands.clientsent.SendMessageCommand;
 import commands.clientsent.SwitchRoomCommand;
 import commands.serversent.LoginResponse;
@@ -34,6 +36,7 @@ import javafx.scene.control.Button;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextArea;
+import javafx.scene.control.TextField;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
@@ -50,6 +53,7 @@ import javafx.stage.WindowEvent;
 import javafx.util.Callback;
 import javafx.util.Duration;
 import shared.DuplicateNameException;
+import shared.FramedStream;
 import shared.Message;
 import shared.RoomPackage;
 
@@ -64,8 +68,10 @@ public class ChattClient extends Application implements Client
 	private static final String CHATTBLUE = "#1E90FF;";
 	private String clientName; // this client's username
 	private Socket server; // connection to server
-	private ObjectOutputStream out; // output stream
-	private ObjectInputStream in; // input stream
+	private FramedStream out; // framed connection to the server
+
+	private static final int ROOM_PAGE = 50; // rooms asked for at once
+	private int roomOffset = 0; // position of the first room shown
 
 	private boolean connected = true;
 	private LoginStage prompt;
@@ -76,6 +82,9 @@ public class ChattClient extends Application implements Client
 	private ObservableList<Message> chattHistory = FXCollections.observableArrayList();
 	private ListView<RoomPackage> rooms;
 	private ObservableList<RoomPackage> availableRooms = FXCollections.observableArrayList();
+	private TextField roomSearch;
+	private Button previousRooms;
+	private Button nextRooms;
 	private TextArea chattArea;
 	private Button sendButton;
 	private Button connectButton;
@@ -122,15 +131,14 @@ public class ChattClient extends Application implements Client
 					// service = ChattHypervisor.getInstance();
 					// connection called separately to include timeout
 					server.connect(new InetSocketAddress(prompt.getAddress(), Integer.parseInt(prompt.getPort())), 500);
-					out = new ObjectOutputStream(server.getOutputStream());
-					in = new ObjectInputStream(server.getInputStream());
+					out = FramedStream.connect(server.getInputStream(), server.getOutputStream(), BinaryCodec::forVersion);
 
 					// write out the name of this client
 					out.writeObject(clientName);
 					out.flush();
 
 					// if the connection was accepted
-					if (((LoginResponse) in.readObject()).accepted)
+					if (((LoginResponse) out.readObject()).accepted)
 					{
 						connected = true;
 
@@ -188,7 +196,6 @@ public class ChattClient extends Application implements Client
 				out.writeObject(new DisconnectCommand(clientName));
 				out.flush();
 				out.close();
-				in.close();
 			}
 			catch (IOException e1)
 			{
@@ -218,13 +225,14 @@ public class ChattClient extends Application implements Client
 			try
 			{
 				out.writeObject(new RequestNameCommand(clientName));
+				out.writeObject(new ListRoomsCommand(clientName, 0, ROOM_PAGE));
 				out.flush();
 
 				// read the next command from the server and execute it
 				while (connected)
 				{
 					@SuppressWarnings("unchecked")
-					Command<Client> c = (Command<Client>) in.readObject();
+					Command<Client> c = (Command<Client>) out.readObject();
 					c.runOn(ChattClient.this);
 				}
 			}
@@ -287,7 +295,6 @@ public class ChattClient extends Application implements Client
 				out.writeObject(new DisconnectCommand(clientName));
 				out.flush();
 				out.close();
-				in.close();
 			}
 			catch (IOException | NullPointerException e)
 			{
@@ -345,7 +352,8 @@ public class ChattClient extends Application implements Client
 		roomsBox.setAlignment(Pos.CENTER);
 		roomsBox.setStyle("-fx-background-color: " + CHATTBLUE);
 
-		roomsBox.getChildren().addAll(makeRoomsTitle(), makeListOfRooms(), makeRoomButtons());
+		roomsBox.getChildren().addAll(makeRoomsTitle(), makeRoomSearch(), makeListOfRooms(), makePageButtons(),
+				makeRoomButtons());
 
 		border.setTop(userInfo);
 		border.setBottom(bottom);
@@ -466,6 +474,52 @@ public class ChattClient extends Application implements Client
 		return rooms;
 	}
 
+	private TextField makeRoomSearch()
+	{
+		roomSearch = new TextField();
+		roomSearch.setPromptText("Search rooms");
+		roomSearch.textProperty().addListener((o, before, after) -> requestRooms(0));
+		return roomSearch;
+	}
+
+	private HBox makePageButtons()
+	{
+		previousRooms = new Button("<");
+		previousRooms.setDisable(true);
+		previousRooms.setOnAction(ae -> requestRooms(Math.max(0, roomOffset - ROOM_PAGE)));
+
+		nextRooms = new Button(">");
+		nextRooms.setDisable(true);
+		nextRooms.setOnAction(ae -> requestRooms(roomOffset + ROOM_PAGE));
+
+		HBox pageBox = new HBox();
+		pageBox.setAlignment(Pos.CENTER);
+		pageBox.getChildren().addAll(previousRooms, nextRooms);
+		return pageBox;
+	}
+
+	/**
+	 * Asks the server for a page of rooms, those whose names start with the
+	 * search text if there is any. The server keeps sending that page as the
+	 * rooms change, until another is asked for.
+	 * 
+	 * @param offset position of the first room wanted
+	 */
+	private void requestRooms(int offset)
+	{
+		String prefix = roomSearch.getText().trim();
+		try
+		{
+			out.writeObject(prefix.isEmpty() ? new ListRoomsCommand(clientName, offset, ROOM_PAGE)
+					: new SearchRoomsCommand(clientName, prefix, offset, ROOM_PAGE));
+			out.flush();
+		}
+		catch (IOException | NullPointerException e)
+		{
+			// not connected yet; the first page is asked for on login
+		}
+	}
+
 	private Text makeRoomsTitle()
 	{
 		allRooms = new Text("Loading rooms...");
@@ -625,6 +679,16 @@ public class ChattClient extends Application implements Client
 		});
 	}
 
+	/**
+	 * @see client.Client#updateMessageList(java.util.List) Adds the whole
+	 *      batch to the chat history in a single pass on the FX thread.
+	 */
+	@Override
+	public void updateMessageList(List<Message> messages)
+	{
+		Platform.runLater(() -> chattHistory.addAll(messages));
+	}
+
 	@Override
 	public void setRoomName(String roomName)
 	{
@@ -657,6 +721,44 @@ public class ChattClient extends Application implements Client
 		});
 	}
 
+	/**
+	 * @see client.Client#updateRoomDirectory(long, long, java.util.List,
+	 *      java.util.List) Only sent until the server has the first page
+	 *      request; since it is never acknowledged it is always the whole
+	 *      directory, which is shown as it is.
+	 */
+	@Override
+	public void updateRoomDirectory(long base, long version, List<RoomPackage> changed, List<Integer> removed)
+	{
+		if (base == 0)
+			updateRoomList(new LinkedList<RoomPackage>(changed));
+	}
+
+	/**
+	 * @see client.Client#updateRoomPage(int, int, java.util.List) Shows just
+	 *      the page, in the order the server sent it.
+	 */
+	@Override
+	public void updateRoomPage(int offset, int total, List<RoomPackage> rooms)
+	{
+		Platform.runLater(() -> {
+			// the rooms past the end of the list went away
+			if (rooms.isEmpty() && offset > 0)
+			{
+				requestRooms(Math.max(0, total - ROOM_PAGE));
+				return;
+			}
+
+			roomOffset = offset;
+			allRooms.setText(total == 0 ? "No rooms"
+					: "Rooms " + (offset + 1) + "-" + (offset + rooms.size()) + " of " + total + ":");
+			previousRooms.setDisable(offset == 0);
+			nextRooms.setDisable(offset + rooms.size() >= total);
+		});
+
+		updateRoomList(new LinkedList<RoomPackage>(rooms));
+	}
+
 	@Override
 	public String toString()
 	{
@@ -4,6 +4,7 @@
 package client;
 
 import java.util.LinkedList;
+import java.util.List;
 
 import shared.Message;
 import shared.RoomPackage;
@@ -24,6 +25,14 @@ public interface Client
 	 */
 	public void updateMessageList(Message message);
 
+	/**
+	 * Called when the server delivers several messages at once. Clients should
+	 * handle the whole list in one go rather than one message at a time.
+	 * 
+	 * @param messages the new messages, oldest first
+	 */
+	public void updateMessageList(List<Message> messages);
+
 	/**
 	 * This method is called by a server command when the server pushes new room
 	 * data to clients.
@@ -32,5 +41,31 @@ public interface Client
 	 */
 	public void updateRoomList(LinkedList<RoomPackage> rooms);
 
+	/**
+	 * This method is called when the server sends changes to the room
+	 * directory. The client should apply them if it holds version base (or
+	 * base is 0, for a whole directory) and acknowledge the version it then
+	 * holds. A client that browses the rooms a page at a time is only sent
+	 * whole directories, until the server has its first page request, and
+	 * needn't acknowledge them.
+	 * 
+	 * @param base the version the changes apply to, 0 for a full directory
+	 * @param version the version after the changes
+	 * @param changed rooms added or changed
+	 * @param removed ids of rooms that are gone
+	 */
+	public void updateRoomDirectory(long base, long version, List<RoomPackage> changed, List<Integer> removed);
+
+	/**
+	 * This method is called when the server sends a page of rooms the client
+	 * asked for, by listing, searching or asking for the busiest. The page
+	 * is sent again whenever the rooms change.
+	 * 
+	 * @param offset position of the first room in the whole result
+	 * @param total number of rooms in the whole result
+	 * @param rooms the rooms on this page
+	 */
+	public void updateRoomPage(int offset, int total, List<RoomPackage> rooms);
+
 	public void setRoomName(String roomName);
 }
@@ -0,0 +1,386 @@
+package commands;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import commands.clientsent.CreateRoomCommand;
+import commands.clientsent.DirectoryAckCommand;
+import commands.clientsent.DisconnectCommand;
+import commands.clientsent.ListRoomsCommand;
+import commands.clientsent.RequestNameCommand;
+import commands.clientsent.SearchRoomsCommand;
+import commands.clientsent.SendMessageCommand;
+import commands.clientsent.SwitchRoomCommand;
+import commands.clientsent.TopRoomsCommand;
+import commands.serversent.LoginResponse;
+import commands.serversent.MessageBatchCommand;
+import commands.serversent.MessagePackageCommand;
+import commands.serversent.RoomDirectoryCommand;
+import commands.serversent.RoomNamePackage;
+import commands.serversent.RoomPackageCommand;
+import commands.serversent.RoomPageCommand;
+import shared.Codec;
+import shared.Message;
+import shared.Protocol;
+import shared.RoomPackage;
+
+/**
+ * The codec for {@link Protocol#BINARY} and later versions. Every payload
+ * starts with a one byte tag naming the command, followed by the command's
+ * fields written by hand. Objects without a tag of their own are sent as
+ * {@link #SERIALIZED} so that new commands work before anyone writes an
+ * encoding for them.
+ * 
+ * Tags are part of the protocol: never reuse or renumber one.
+ *
+ * @author Peter Cortes
+ */
+public final class BinaryCodec implements Codec
+{
+	private static final BinaryCodec[] VERSIONS = new BinaryCodec[Protocol.LATEST + 1];
+	static
+	{
+		for (int v = Protocol.BINARY; v <= Protocol.LATEST; v++)
+			VERSIONS[v] = new BinaryCodec(v);
+	}
+
+	/**
+	 * The codec for {@link Protocol#LATEST}
+	 */
+	public static final BinaryCodec INSTANCE = VERSIONS[Protocol.LATEST];
+
+	// anything else, as java serialization
+	private static final int SERIALIZED = 0;
+
+	// the name a client logs in with
+	private static final int NAME = 1;
+
+	// client sent
+	private static final int SEND_MESSAGE = 10;
+	private static final int DISCONNECT = 11;
+	private static final int CREATE_ROOM = 12;
+	private static final int SWITCH_ROOM = 13;
+	private static final int REQUEST_NAME = 14;
+	private static final int DIRECTORY_ACK = 15;
+	private static final int LIST_ROOMS = 16;
+	private static final int SEARCH_ROOMS = 17;
+	private static final int TOP_ROOMS = 18;
+
+	// server sent
+	private static final int LOGIN_RESPONSE = 40;
+	private static final int MESSAGE_PACKAGE = 41;
+	private static final int ROOM_PACKAGE = 42;
+	private static final int ROOM_NAME = 43;
+	private static final int MESSAGE_BATCH = 44;
+	private static final int ROOM_DIRECTORY = 45;
+	private static final int ROOM_PAGE = 46;
+
+	// the fewest bytes a message takes: its flags and two empty strings
+	private static final int MESSAGE_SIZE = 9;
+
+	// the fewest bytes a room takes: its id and an empty name
+	private static final int ROOM_SIZE = 8;
+
+	/**
+	 * whether rooms are written with their counts, see
+	 * {@link Protocol#ROOM_COUNTS}
+	 */
+	private final boolean counts;
+
+	private BinaryCodec(int version)
+	{
+		counts = version >= Protocol.ROOM_COUNTS;
+	}
+
+	/**
+	 * @param version a protocol version agreed on at login
+	 * @return the codec for that version
+	 */
+	public static Codec forVersion(int version)
+	{
+		return version >= Protocol.BINARY ? VERSIONS[Math.min(version, Protocol.LATEST)] : Protocol.JAVA;
+	}
+
+	@Override
+	public byte[] encode(Object o) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		if (o instanceof String)
+		{
+			out.writeByte(NAME);
+			out.writeUTF((String) o);
+		}
+		else if (o instanceof SendMessageCommand)
+		{
+			out.writeByte(SEND_MESSAGE);
+			((SendMessageCommand) o).message.write(out);
+		}
+		else if (o instanceof DisconnectCommand)
+		{
+			out.writeByte(DISCONNECT);
+			out.writeUTF(((DisconnectCommand) o).clientName);
+		}
+		else if (o instanceof CreateRoomCommand)
+		{
+			CreateRoomCommand c = (CreateRoomCommand) o;
+			out.writeByte(CREATE_ROOM);
+			out.writeUTF(c.username);
+			out.writeUTF(c.roomname);
+		}
+		else if (o instanceof SwitchRoomCommand)
+		{
+			SwitchRoomCommand c = (SwitchRoomCommand) o;
+			out.writeByte(SWITCH_ROOM);
+			out.writeUTF(c.username);
+			out.writeInt(c.roomID);
+		}
+		else if (o instanceof RequestNameCommand)
+		{
+			out.writeByte(REQUEST_NAME);
+			out.writeUTF(((RequestNameCommand) o).username);
+		}
+		else if (o instanceof DirectoryAckCommand)
+		{
+			DirectoryAckCommand c = (DirectoryAckCommand) o;
+			out.writeByte(DIRECTORY_ACK);
+			out.writeUTF(c.username);
+			out.writeLong(c.version);
+		}
+		else if (o instanceof ListRoomsCommand)
+		{
+			ListRoomsCommand c = (ListRoomsCommand) o;
+			out.writeByte(LIST_ROOMS);
+			out.writeUTF(c.username);
+			out.writeInt(c.offset);
+			out.writeInt(c.limit);
+		}
+		else if (o instanceof SearchRoomsCommand)
+		{
+			SearchRoomsCommand c = (SearchRoomsCommand) o;
+			out.writeByte(SEARCH_ROOMS);
+			out.writeUTF(c.username);
+			out.writeUTF(c.prefix);
+			out.writeInt(c.offset);
+			out.writeInt(c.limit);
+		}
+		else if (o instanceof TopRoomsCommand)
+		{
+			TopRoomsCommand c = (TopRoomsCommand) o;
+			out.writeByte(TOP_ROOMS);
+			out.writeUTF(c.username);
+			out.writeInt(c.count);
+		}
+		else if (o instanceof LoginResponse)
+		{
+			out.writeByte(LOGIN_RESPONSE);
+			out.writeBoolean(((LoginResponse) o).accepted);
+		}
+		else if (o instanceof MessagePackageCommand)
+		{
+			out.writeByte(MESSAGE_PACKAGE);
+			((MessagePackageCommand) o).message.write(out);
+		}
+		else if (o instanceof MessageBatchCommand)
+		{
+			ArrayList<Message> messages = ((MessageBatchCommand) o).messages;
+			out.writeByte(MESSAGE_BATCH);
+			out.writeInt(messages.size());
+			for (Message m: messages)
+				m.write(out);
+		}
+		else if (o instanceof RoomPackageCommand)
+		{
+			LinkedList<RoomPackage> rooms = ((RoomPackageCommand) o).rooms;
+			out.writeByte(ROOM_PACKAGE);
+			out.writeInt(rooms.size());
+			for (RoomPackage r: rooms)
+				r.write(out, counts);
+		}
+		else if (o instanceof RoomDirectoryCommand)
+		{
+			RoomDirectoryCommand c = (RoomDirectoryCommand) o;
+			out.writeByte(ROOM_DIRECTORY);
+			out.writeLong(c.base);
+			out.writeLong(c.version);
+			out.writeInt(c.changed.size());
+			for (RoomPackage r: c.changed)
+				r.write(out, counts);
+			out.writeInt(c.removed.size());
+			for (int id: c.removed)
+				out.writeInt(id);
+		}
+		else if (o instanceof RoomPageCommand)
+		{
+			RoomPageCommand c = (RoomPageCommand) o;
+			out.writeByte(ROOM_PAGE);
+			out.writeInt(c.offset);
+			out.writeInt(c.total);
+			out.writeInt(c.rooms.size());
+			for (RoomPackage r: c.rooms)
+				r.write(out, counts);
+		}
+		else if (o instanceof RoomNamePackage)
+		{
+			out.writeByte(ROOM_NAME);
+			Protocol.writeString(out, ((RoomNamePackage) o).roomName);
+		}
+		else
+		{
+			out.writeByte(SERIALIZED);
+			out.write(Protocol.serialize(o));
+		}
+
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public Object decode(byte[] payload, int offset, int length) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+
+		try
+		{
+			int tag = in.readUnsignedByte();
+			switch (tag)
+			{
+				case NAME:
+					return in.readUTF();
+
+				case SEND_MESSAGE:
+					return new SendMessageCommand(Message.read(in));
+
+				case DISCONNECT:
+					return new DisconnectCommand(in.readUTF());
+
+				case CREATE_ROOM:
+					return new CreateRoomCommand(in.readUTF(), in.readUTF());
+
+				case SWITCH_ROOM:
+					return new SwitchRoomCommand(in.readUTF(), in.readInt());
+
+				case REQUEST_NAME:
+					return new RequestNameCommand(in.readUTF());
+
+				case DIRECTORY_ACK:
+					return new DirectoryAckCommand(in.readUTF(), in.readLong());
+
+				case LIST_ROOMS:
+					return new ListRoomsCommand(in.readUTF(), natural(in), natural(in));
+
+				case SEARCH_ROOMS:
+					return new SearchRoomsCommand(in.readUTF(), in.readUTF(), natural(in), natural(in));
+
+				case TOP_ROOMS:
+					return new TopRoomsCommand(in.readUTF(), natural(in));
+
+				case LOGIN_RESPONSE:
+					return new LoginResponse(in.readBoolean());
+
+				case MESSAGE_PACKAGE:
+					return new MessagePackageCommand(Message.read(in));
+
+				case MESSAGE_BATCH:
+					int size = count(in, MESSAGE_SIZE);
+					ArrayList<Message> messages = new ArrayList<Message>();
+					for (int i = 0; i < size; i++)
+						messages.add(Message.read(in));
+					return new MessageBatchCommand(messages);
+
+				case ROOM_PACKAGE:
+					int count = in.readInt();
+					LinkedList<RoomPackage> rooms = new LinkedList<RoomPackage>();
+					for (int i = 0; i < count; i++)
+						rooms.add(RoomPackage.read(in, counts));
+					return new RoomPackageCommand(rooms);
+
+				case ROOM_DIRECTORY:
+					return readDirectory(in);
+
+				case ROOM_PAGE:
+					return readPage(in);
+
+				case ROOM_NAME:
+					return new RoomNamePackage(Protocol.readString(in));
+
+				case SERIALIZED:
+					return Protocol.JAVA.decode(payload, offset + 1, length - 1);
+
+				default:
+					throw new StreamCorruptedException("unknown command tag " + tag);
+			}
+		}
+		catch (EOFException e)
+		{
+			throw new StreamCorruptedException("truncated frame");
+		}
+	}
+
+	/**
+	 * Reads the number of items that follow, and checks it against what is
+	 * left of the frame, so that a bad count can't make the reader allocate
+	 * more than the frame could hold.
+	 * 
+	 * @param in the rest of the frame
+	 * @param smallest the fewest bytes each item takes
+	 */
+	private static int count(DataInputStream in, int smallest) throws IOException
+	{
+		int count = in.readInt();
+		if (count < 0 || count > in.available() / smallest)
+			throw new StreamCorruptedException("bad count " + count);
+
+		return count;
+	}
+
+	/**
+	 * Reads an offset or a number of rooms, which can't be negative.
+	 */
+	private static int natural(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		if (n < 0)
+			throw new StreamCorruptedException("negative " + n);
+
+		return n;
+	}
+
+	private RoomPageCommand readPage(DataInputStream in) throws IOException
+	{
+		int offset = in.readInt();
+		int total = in.readInt();
+
+		int count = count(in, ROOM_SIZE);
+		ArrayList<RoomPackage> rooms = new ArrayList<RoomPackage>();
+		for (int i = 0; i < count; i++)
+			rooms.add(RoomPackage.read(in, counts));
+
+		return new RoomPageCommand(offset, total, rooms);
+	}
+
+	private RoomDirectoryCommand readDirectory(DataInputStream in) throws IOException
+	{
+		long base = in.readLong();
+		long version = in.readLong();
+
+		int count = count(in, ROOM_SIZE);
+		ArrayList<RoomPackage> changed = new ArrayList<RoomPackage>();
+		for (int i = 0; i < count; i++)
+			changed.add(RoomPackage.read(in, counts));
+
+		count = count(in, 4);
+		ArrayList<Integer> removed = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++)
+			removed.add(in.readInt());
+
+		return new RoomDirectoryCommand(base, version, changed, removed);
+	}
+}
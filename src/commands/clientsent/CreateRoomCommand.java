@@ -11,8 +11,8 @@ import server.Server;
 public class CreateRoomCommand extends Command<Server>
 {
 	private static final long serialVersionUID = -8737119861157541470L;
-	private final String username;
-	private final String roomname;
+	public final String username;
+	public final String roomname;
 	
 	/**
 	 * Creates a new create room command with the desired room name
@@ -0,0 +1,56 @@
+package commands.clientsent;
+
+import commands.Command;
+import server.Server;
+
+/**
+ * Tells the server which version of the room directory the client holds, so
+ * that later updates only carry what changed since
+ * 
+ * @author Peter Cortes
+ */
+public class DirectoryAckCommand extends Command<Server>
+{
+	private static final long serialVersionUID = 4410367253178004212L;
+	public final String username;
+	public final long version;
+
+	public DirectoryAckCommand(String username, long version)
+	{
+		this.username = username;
+		this.version = version;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Server recipient)
+	{
+		recipient.acknowledgeDirectory(username, version);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((username == null) ? 0 : username.hashCode());
+		result = prime * result + (int) (version ^ (version >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		DirectoryAckCommand other = (DirectoryAckCommand) obj;
+		if (version != other.version)
+			return false;
+		if (username == null)
+			return other.username == null;
+		return username.equals(other.username);
+	}
+}
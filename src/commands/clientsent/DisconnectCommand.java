@@ -12,7 +12,7 @@ import server.Server;
 public class DisconnectCommand extends Command<Server>
 {
 	private static final long serialVersionUID = -3810515760788481346L;
-	private String clientName; // client who is disconnecting
+	public final String clientName; // client who is disconnecting
 
 	/**
 	 * Creates a disconnect command for the given client
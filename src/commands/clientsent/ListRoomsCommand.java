@@ -0,0 +1,58 @@
+package commands.clientsent;
+
+import commands.Command;
+import server.Server;
+
+/**
+ * Asks for a page of every room, in order of name
+ * 
+ * @author Peter Cortes
+ */
+public class ListRoomsCommand extends Command<Server>
+{
+	private static final long serialVersionUID = 6630183425501290764L;
+	public final String username;
+	public final int offset;
+	public final int limit;
+
+	public ListRoomsCommand(String username, int offset, int limit)
+	{
+		this.username = username;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Server recipient)
+	{
+		recipient.listRooms(username, offset, limit);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((username == null) ? 0 : username.hashCode());
+		result = prime * result + offset;
+		result = prime * result + limit;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		ListRoomsCommand other = (ListRoomsCommand) obj;
+		if (offset != other.offset || limit != other.limit)
+			return false;
+		if (username == null)
+			return other.username == null;
+		return username.equals(other.username);
+	}
+}
@@ -0,0 +1,63 @@
+package commands.clientsent;
+
+import commands.Command;
+import server.Server;
+
+/**
+ * Asks for a page of the rooms whose names start with a prefix, ignoring case
+ * 
+ * @author Peter Cortes
+ */
+public class SearchRoomsCommand extends Command<Server>
+{
+	private static final long serialVersionUID = -2716350880215497021L;
+	public final String username;
+	public final String prefix;
+	public final int offset;
+	public final int limit;
+
+	public SearchRoomsCommand(String username, String prefix, int offset, int limit)
+	{
+		this.username = username;
+		this.prefix = prefix;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Server recipient)
+	{
+		recipient.searchRooms(username, prefix, offset, limit);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((username == null) ? 0 : username.hashCode());
+		result = prime * result + ((prefix == null) ? 0 : prefix.hashCode());
+		result = prime * result + offset;
+		result = prime * result + limit;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		SearchRoomsCommand other = (SearchRoomsCommand) obj;
+		if (offset != other.offset || limit != other.limit)
+			return false;
+		if (prefix == null ? other.prefix != null : !prefix.equals(other.prefix))
+			return false;
+		if (username == null)
+			return other.username == null;
+		return username.equals(other.username);
+	}
+}
@@ -12,7 +12,7 @@ import shared.Message;
 public class SendMessageCommand extends Command<Server>
 {
 	private static final long serialVersionUID = 3426610237662854206L;
-	private Message message; // message from client
+	public final Message message; // message from client
 
 	/**
 	 * Creates an AddMessageCommand with the given message
@@ -11,8 +11,8 @@ import server.Server;
 public class SwitchRoomCommand extends Command<Server>
 {
 	private static final long serialVersionUID = 8925701358525101336L;
-	private final String username;
-	private final int roomID;
+	public final String username;
+	public final int roomID;
 
 	/**
 	 * @param username
@@ -0,0 +1,55 @@
+package commands.clientsent;
+
+import commands.Command;
+import server.Server;
+
+/**
+ * Asks for the rooms with the most members
+ * 
+ * @author Peter Cortes
+ */
+public class TopRoomsCommand extends Command<Server>
+{
+	private static final long serialVersionUID = 3158904472260917345L;
+	public final String username;
+	public final int count;
+
+	public TopRoomsCommand(String username, int count)
+	{
+		this.username = username;
+		this.count = count;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Server recipient)
+	{
+		recipient.topRooms(username, count);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((username == null) ? 0 : username.hashCode());
+		result = prime * result + count;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		TopRoomsCommand other = (TopRoomsCommand) obj;
+		if (count != other.count)
+			return false;
+		if (username == null)
+			return other.username == null;
+		return username.equals(other.username);
+	}
+}
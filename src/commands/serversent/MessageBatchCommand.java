@@ -0,0 +1,51 @@
+package commands.serversent;
+
+import java.util.ArrayList;
+
+import shared.Message;
+import client.Client;
+import commands.Command;
+
+/**
+ * Delivers several chat messages that reached a room at about the same time,
+ * in the order the room received them
+ * 
+ * @author Peter Cortes
+ */
+public class MessageBatchCommand extends Command<Client>
+{
+	private static final long serialVersionUID = -6029713316557412210L;
+	public final ArrayList<Message> messages;
+
+	/**
+	 * @param messages the messages, oldest first
+	 */
+	public MessageBatchCommand(ArrayList<Message> messages)
+	{
+		this.messages = messages;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Client recipient)
+	{
+		recipient.updateMessageList(messages);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return messages.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		return messages.equals(((MessageBatchCommand) obj).messages);
+	}
+}
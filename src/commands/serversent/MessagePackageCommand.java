@@ -13,7 +13,7 @@ import commands.Command;
 public class MessagePackageCommand extends Command<Client>
 {
 	private static final long serialVersionUID = 1781010100988819007L;
-	private Message message; // the message from the server
+	public final Message message; // the message from the server
 
 	/**
 	 * Creates a new UpdateClientCommand with the given log of messages
@@ -0,0 +1,72 @@
+package commands.serversent;
+
+import java.util.ArrayList;
+
+import client.Client;
+import commands.Command;
+import shared.RoomPackage;
+
+/**
+ * Brings a client's room directory up to date. Either the whole directory,
+ * when {@link #base} is 0, or the rooms that were added, renamed or changed
+ * size since version {@link #base}, along with the ids of rooms that are gone.
+ * 
+ * @author Peter Cortes
+ */
+public class RoomDirectoryCommand extends Command<Client>
+{
+	private static final long serialVersionUID = 2093675127460285011L;
+
+	/**
+	 * The directory version the changes apply to, 0 for a full directory
+	 */
+	public final long base;
+
+	/**
+	 * The directory version once the changes are applied
+	 */
+	public final long version;
+
+	public final ArrayList<RoomPackage> changed;
+	public final ArrayList<Integer> removed;
+
+	public RoomDirectoryCommand(long base, long version, ArrayList<RoomPackage> changed, ArrayList<Integer> removed)
+	{
+		this.base = base;
+		this.version = version;
+		this.changed = changed;
+		this.removed = removed;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Client recipient)
+	{
+		recipient.updateRoomDirectory(base, version, changed, removed);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (int) (base ^ (base >>> 32));
+		result = prime * result + (int) (version ^ (version >>> 32));
+		result = prime * result + changed.hashCode();
+		result = prime * result + removed.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		RoomDirectoryCommand other = (RoomDirectoryCommand) obj;
+		return base == other.base && version == other.version && changed.equals(other.changed)
+				&& removed.equals(other.removed);
+	}
+}
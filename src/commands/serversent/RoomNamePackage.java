@@ -12,7 +12,7 @@ import commands.Command;
 public class RoomNamePackage extends Command<Client>
 {
 	private static final long serialVersionUID = -3363638006742964099L;
-	private String roomName;
+	public final String roomName;
 
 	public RoomNamePackage(String roomName)
 	{
@@ -15,7 +15,7 @@ import shared.RoomPackage;
 public class RoomPackageCommand extends Command<Client>
 {
 	private static final long serialVersionUID = -5950253936244021170L;
-	private LinkedList<RoomPackage> rooms; // the message from the server
+	public final LinkedList<RoomPackage> rooms; // the message from the server
 
 	/**
 	 * Creates a new UpdateClientCommand with the given log of messages
@@ -0,0 +1,67 @@
+package commands.serversent;
+
+import java.util.ArrayList;
+
+import client.Client;
+import commands.Command;
+import shared.RoomPackage;
+
+/**
+ * Answers a client's request for a page of rooms, a search, or the busiest
+ * rooms
+ * 
+ * @author Peter Cortes
+ */
+public class RoomPageCommand extends Command<Client>
+{
+	private static final long serialVersionUID = -1384721005573294511L;
+
+	/**
+	 * position of the first room in the whole result
+	 */
+	public final int offset;
+
+	/**
+	 * number of rooms in the whole result
+	 */
+	public final int total;
+
+	public final ArrayList<RoomPackage> rooms;
+
+	public RoomPageCommand(int offset, int total, ArrayList<RoomPackage> rooms)
+	{
+		this.offset = offset;
+		this.total = total;
+		this.rooms = rooms;
+	}
+
+	/**
+	 * @see commands.Command#runOn(java.lang.Object)
+	 */
+	public void runOn(Client recipient)
+	{
+		recipient.updateRoomPage(offset, total, rooms);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + offset;
+		result = prime * result + total;
+		result = prime * result + rooms.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		RoomPageCommand other = (RoomPageCommand) obj;
+		return offset == other.offset && total == other.total && rooms.equals(other.rooms);
+	}
+}
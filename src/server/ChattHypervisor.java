@@ -4,15 +4,27 @@
 package server;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.TreeSet;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import commands.serversent.LoginResponse;
+import server.cluster.Cluster;
+import server.cluster.RemoteConnection;
+import server.journal.JournalWriter;
+import server.net.BlockingConnection;
+import server.net.Connection;
+import server.net.Frame;
+import server.net.LoginPipeline;
+import server.net.NioTransport;
+import shared.RoomPackage;
 
 /**
  *
@@ -21,10 +33,81 @@ import commands.serversent.LoginResponse;
  */
 public class ChattHypervisor
 {
-	public HashMap<Integer, ChattRoom> rooms = new HashMap<Integer, ChattRoom>();
-	public TreeSet<MetaClient> currentUsers = new TreeSet<MetaClient>();
+	/**
+	 * The id of the room new clients are placed in, the same on every node
+	 */
+	public static final int LOBBY = 1;
+
+	/**
+	 * Every room by id
+	 */
+	public final ConcurrentHashMap<Integer, ChattRoom> rooms = new ConcurrentHashMap<Integer, ChattRoom>();
+
+	/**
+	 * Rooms taken out of the room list after standing empty, by id, until
+	 * they are brought back or removed
+	 */
+	public final ConcurrentHashMap<Integer, ChattRoom> archived = new ConcurrentHashMap<Integer, ChattRoom>();
+
+	/**
+	 * Rooms archived, brought back from the archive and removed since the
+	 * server started
+	 */
+	public final AtomicLong roomsArchived = new AtomicLong();
+	public final AtomicLong roomsRestored = new AtomicLong();
+	public final AtomicLong roomsRemoved = new AtomicLong();
+
+	/**
+	 * Every logged in client by {@link MetaClient#key}
+	 */
+	public final ConcurrentHashMap<String, MetaClient> currentUsers = new ConcurrentHashMap<String, MetaClient>();
 
 	private ServerSocket socket;
+	private NioTransport transport;
+	private final Diagnostics diagnostics = new Diagnostics(this);
+	private final Console console = new Console(this);
+	final Handoff handoff = new Handoff(this);
+
+	/**
+	 * Run the rooms, each room on the shard picked by its id
+	 */
+	public final Shard[] shards = new Shard[Config.SHARDS];
+
+	/**
+	 * Runs the timers that aren't a room's, such as idle checks
+	 */
+	public final TimerWheel timer = new TimerWheel(Config.TIMER_TICK, Config.TIMER_WHEEL, "chatt-timer");
+
+	/**
+	 * The room list as of the last time it was rebuilt, whether rooms have
+	 * been added or removed since, whether members have come or gone since,
+	 * and when that was in milliseconds
+	 */
+	private volatile Directory directory = new Directory(0, Collections.<ChattRoom> emptyList(),
+			Collections.<RoomPackage> emptyList());
+	private final AtomicBoolean directoryStale = new AtomicBoolean(true);
+	private final AtomicBoolean countsStale = new AtomicBoolean();
+	private volatile long directoryBuilt = 0;
+
+	/**
+	 * Recent directories, newest last, guarded by directoryStale
+	 */
+	private final ArrayDeque<Directory> directoryHistory = new ArrayDeque<Directory>();
+
+	/**
+	 * Writes the rooms' journals, or null if none are kept
+	 */
+	public final JournalWriter journals = Config.JOURNAL_DIR.isEmpty() ? null : new JournalWriter();
+
+	/**
+	 * The other nodes this one shares rooms with, or null if it runs alone
+	 */
+	public final Cluster cluster;
+
+	/**
+	 * Every new client passes through here on its way to a room
+	 */
+	public final LoginPipeline logins = new LoginPipeline(this);
 
 	private static ChattHypervisor instance;
 
@@ -43,7 +126,8 @@ public class ChattHypervisor
 	}
 
 	/**
-	 * This thread listens for and sets up connections to new clients.
+	 * This thread listens for and sets up connections to new clients when the
+	 * server runs with blocking connections.
 	 *
 	 * @author Peter Cortes
 	 */
@@ -51,76 +135,333 @@ public class ChattHypervisor
 	{
 		public void run()
 		{
-			try
+			while (!socket.isClosed())
 			{
-				while (true)
+				try
 				{
-					// accept a new client, get output & input streams
+					// accept a new client and queue it for login
 					Socket s = socket.accept();
-					ObjectOutputStream output = new ObjectOutputStream(s.getOutputStream());
-					ObjectInputStream input = new ObjectInputStream(s.getInputStream());
+					logins.submit(s, s.getInputStream(), s.getOutputStream());
+				}
+				catch (IOException e)
+				{
+					// handed over to a new server
+					if (socket.isClosed())
+						break;
 
-					// read the client's name
-					String clientName = (String) input.readObject();
+					// keep listening, this is usually a client that gave up
+					System.err.println("accept failed (" + e.getMessage() + ")");
+				}
+			}
+		}
+	}
 
-					MetaClient candidateUser = new MetaClient(clientName, output, input);
+	private ChattHypervisor()
+	{
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new Shard(i);
 
-					// client already exists
-					if (currentUsers.contains(candidateUser))
+		cluster = Config.NODE.isEmpty() ? null : new Cluster(this, Config.NODE, Config.CLUSTER);
+		if (cluster != null && Handoff.sharesPort())
+		{
+			// the replacement would need the old process's cluster links too
+			System.err.println("a cluster node can't be replaced in place; move its rooms to other nodes instead");
+			System.exit(1);
+		}
+
+		try
+		{
+			handoff.fetch();
+
+			switch (Config.TRANSPORT)
+			{
+				case BLOCKING:
+				case VIRTUAL:
+					// a platform thread, since virtual threads wouldn't keep the
+					// server alive
+					if (Handoff.sharesPort())
 					{
-						output.writeObject(new LoginResponse(false));
-						output.flush();
-						s.close();
+						// only a channel can be told to share its port on Java 8
+						ServerSocketChannel channel = ServerSocketChannel.open();
+						Handoff.sharePort(channel);
+						channel.bind(new InetSocketAddress(Config.PORT));
+						socket = channel.socket();
 					}
-					else // store the client
-					{
-						output.writeObject(new LoginResponse(true));
-						output.flush();
+					else
+						socket = new ServerSocket(Config.PORT);
+					new Thread(new ClientAccepter(), "chatt-accepter").start();
+					break;
 
-						addUser(candidateUser);
-					}
-				}
+				case NIO:
+					transport = new NioTransport(this, Config.PORT, Config.EVENT_LOOPS);
+					transport.start();
+					break;
 			}
-			catch (Exception e)
+		}
+		catch (BindException e)
+		{
+			System.err.println("server already running");
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Accepts or rejects a client that sent its name, and places accepted
+	 * clients in a room. Rejected clients are disconnected.
+	 * 
+	 * @param clientName the name the client asked for
+	 * @param c the connection the name arrived on
+	 * @return the new client, or null if the name is taken
+	 */
+	public MetaClient login(String clientName, Connection c) throws IOException
+	{
+		MetaClient candidateUser = new MetaClient(clientName, c);
+
+		// client already exists; claiming the name here means two clients
+		// racing for it can't both get it
+		if (currentUsers.putIfAbsent(candidateUser.key, candidateUser) != null)
+		{
+			c.send(new Frame(new LoginResponse(false)));
+			c.close();
+			return null;
+		}
+
+		// or exists on another node, as far as this one has heard
+		if (cluster != null)
+		{
+			if (cluster.presence.takenElsewhere(candidateUser.key))
 			{
-				e.printStackTrace();
+				currentUsers.remove(candidateUser.key, candidateUser);
+				c.send(new Frame(new LoginResponse(false)));
+				c.close();
+				return null;
 			}
+			cluster.presence.claim(candidateUser.key);
 		}
 
-		private void addUser(MetaClient candidateUser)
+		try
+		{
+			c.send(new Frame(new LoginResponse(true)));
+		}
+		catch (IOException e)
 		{
-			// TODO: logic for assignment to a room goes here
+			logout(candidateUser);
+			throw e;
+		}
+
+		addUser(candidateUser);
+		if (Config.IDLE_TIMEOUT > 0)
+			timer.schedule(Config.IDLE_TIMEOUT, () -> checkIdle(candidateUser));
 
-			currentUsers.add(candidateUser);
+		// clients on an event loop have their commands pushed to their room
+		if (c instanceof BlockingConnection)
+			SessionThreads.start(new SingleClientThread(candidateUser));
+
+		return candidateUser;
+	}
+
+	private void addUser(MetaClient candidateUser)
+	{
+		// TODO: logic for assignment to a room goes here
+
+		// back where it was before the server was replaced
+		int room = handoff.resume(candidateUser);
+		if (room != 0 && switchClientToRoom(candidateUser, room))
+			return;
+
+		lobby().addClient(candidateUser);
+	}
+
+	/**
+	 * @return the room new clients are placed in, which may be on another
+	 *         node
+	 */
+	public Room lobby()
+	{
+		Room lobby = rooms.get(LOBBY);
+		return lobby != null ? lobby : cluster.room(LOBBY);
+	}
+
+	/**
+	 * @param roomID a room's id
+	 * @return the shard that runs the room
+	 */
+	public Shard shardFor(int roomID)
+	{
+		return shards[Math.floorMod(roomID, shards.length)];
+	}
+
+	/**
+	 * Marks the room list out of date, so it is rebuilt the next time it is
+	 * asked for. Called whenever a room is added or removed.
+	 */
+	public void roomsChanged()
+	{
+		directoryStale.set(true);
+	}
+
+	/**
+	 * Marks the member counts in the room list out of date. Called whenever a
+	 * room's members change; the counts are brought up to date at most once
+	 * every {@link Config#ROOM_LIST_INTERVAL}, so that a burst of joins
+	 * doesn't rebuild the list for each one.
+	 */
+	public void membersChanged()
+	{
+		countsStale.set(true);
+	}
 
-			rooms.get(1).addClient(candidateUser);
+	/**
+	 * @return the current room list, rebuilt first if rooms were added or
+	 *         removed since it was last asked for, or if its member counts
+	 *         are out of date and it hasn't been rebuilt for a refresh
+	 *         interval
+	 */
+	public Directory directory()
+	{
+		if (directoryStale.get() || countsDue())
+		{
+			synchronized (directoryStale)
+			{
+				if (directoryStale.getAndSet(false) | countsDue())
+				{
+					countsStale.set(false);
+					directoryBuilt = System.currentTimeMillis();
+					directory = new Directory(directory.version + 1, rooms.values(),
+							cluster == null ? Collections.<RoomPackage> emptyList() : cluster.remoteRooms());
+
+					directoryHistory.addLast(directory);
+					if (directoryHistory.size() > Config.DIRECTORY_HISTORY)
+						directoryHistory.removeFirst();
+				}
+			}
 		}
+
+		return directory;
 	}
 
-	private ChattHypervisor()
+	private boolean countsDue()
 	{
-		try
+		return countsStale.get() && System.currentTimeMillis() - directoryBuilt >= Config.ROOM_LIST_INTERVAL;
+	}
+
+	/**
+	 * @param version a directory version a client acknowledged
+	 * @return that directory, or null if it's too old to remember
+	 */
+	public Directory directory(long version)
+	{
+		synchronized (directoryStale)
 		{
-			socket = new ServerSocket(9001);
-			new Thread(new ClientAccepter()).start();
+			for (Directory d: directoryHistory)
+				if (d.version == version)
+					return d;
 		}
-		catch (BindException e)
+
+		return null;
+	}
+
+	/**
+	 * Disconnects a client that hasn't sent anything for
+	 * {@link Config#IDLE_TIMEOUT}, or checks again when it could next have.
+	 * Runs on the timer thread.
+	 */
+	private void checkIdle(MetaClient user)
+	{
+		if (currentUsers.get(user.key) != user)
+			return;
+
+		long idle = System.currentTimeMillis() - user.lastSeen;
+		if (idle >= Config.IDLE_TIMEOUT)
+			user.room.timeOut(user);
+		else
+			timer.schedule(Config.IDLE_TIMEOUT - idle, () -> checkIdle(user));
+	}
+
+	/**
+	 * Frees a client's name. Does nothing if the name has since been taken by
+	 * someone else.
+	 * 
+	 * @param user the client that left
+	 */
+	public void logout(MetaClient user)
+	{
+		if (currentUsers.remove(user.key, user) && cluster != null)
+			cluster.presence.release(user.key);
+	}
+
+	/**
+	 * Stops taking new clients, leaving the ones already here connected.
+	 */
+	void stopAccepting()
+	{
+		try
 		{
-			System.err.println("server already running");
-			System.exit(1);
+			if (socket != null)
+				socket.close();
 		}
 		catch (IOException e)
 		{
-			e.printStackTrace();
+			// not accepting either way
 		}
+
+		if (transport != null)
+			transport.stopAccepting();
+	}
+
+	/**
+	 * @param username a client's name, in any case
+	 * @return the logged in client with that name, or null if there is none
+	 */
+	public MetaClient getUser(String username)
+	{
+		return currentUsers.get(MetaClient.canonical(username));
 	}
 
 	public void initialize()
 	{
-		ChattRoom t = ChattRoom.createNewRoom("apple room");
-		rooms.put(t.roomID, t);
-		t = ChattRoom.createNewRoom("berry room");
-		rooms.put(t.roomID, t);
+		timer.start();
+		for (Shard s: shards)
+			s.start();
+
+		// in a cluster each permanent room is run by the node that owns it
+		if (cluster == null || cluster.owns(LOBBY))
+		{
+			ChattRoom lobby = ChattRoom.createPermanentRoom(LOBBY, "apple room");
+			rooms.put(lobby.roomID, lobby);
+		}
+		if (cluster == null || cluster.owns(2))
+		{
+			ChattRoom t = ChattRoom.createPermanentRoom(2, "berry room");
+			rooms.put(t.roomID, t);
+		}
+		roomsChanged();
+
+		if (cluster != null)
+		{
+			try
+			{
+				cluster.start();
+			}
+			catch (IOException e)
+			{
+				System.err.println("can't listen for other nodes (" + e.getMessage() + ")");
+				System.exit(1);
+			}
+		}
+
+		diagnostics.start();
+		console.start();
+		handoff.restore();
+		handoff.listen();
+
+		// after the process this one replaced has let go of the journals
+		if (journals != null)
+			journals.start();
 	}
 
 	@Override
@@ -150,28 +491,148 @@ public class ChattHypervisor
 	}
 
 	/**
-	 * @param user
-	 * @param roomname
+	 * Moves a client to a new room. In a cluster the room is run by whichever
+	 * node its id hashes to.
+	 * 
+	 * @param user the client moving
+	 * @param roomname the new room's name
 	 */
 	public void createAndSwitch(MetaClient user, String roomname)
 	{
-		ChattRoom t = ChattRoom.createNewRoom(roomname);
+		if (cluster == null)
+		{
+			ChattRoom t = ChattRoom.createNewRoom(roomname);
+			rooms.put(t.roomID, t);
+			roomsChanged();
+			t.addClient(user);
+			return;
+		}
+
+		int id = ChattRoom.newRoomID(cluster.index);
+		if (cluster.owns(id))
+			createRoom(id, roomname).addClient(user);
+		else if (user.connection instanceof RemoteConnection)
+			((RemoteConnection) user.connection).move(0, roomname);
+		else
+			cluster.room(id).create(user, roomname);
+	}
+
+	/**
+	 * Starts running a room created by a client, possibly of another node.
+	 * 
+	 * @param id the room's id
+	 * @param roomname the room's name
+	 * @return the room
+	 */
+	public ChattRoom createRoom(int id, String roomname)
+	{
+		ChattRoom t = ChattRoom.createNewRoom(id, roomname);
 		rooms.put(t.roomID, t);
-		t.addClient(user);
+		roomsChanged();
+		return t;
 	}
 
 	/**
-	 * @param user
-	 * @param roomID
+	 * Moves a client to a room, bringing it back if it was archived.
+	 * 
+	 * @param user the client moving
+	 * @param roomID the room to move to
+	 * @return false if there is no such room
 	 */
 	public boolean switchClientToRoom(MetaClient user, int roomID)
 	{
-		if (rooms.containsKey(roomID))
+		Room r = rooms.get(roomID);
+		if (r == null)
+			r = archived.get(roomID);
+
+		if (r == null && cluster != null && !cluster.owns(roomID) && (roomID == LOBBY || cluster.knows(roomID)))
 		{
-			rooms.get(roomID).addClient(user);
-			return true;
+			// a client of another node goes back through its own node
+			if (user.connection instanceof RemoteConnection)
+			{
+				((RemoteConnection) user.connection).move(roomID, null);
+				return true;
+			}
+
+			r = cluster.room(roomID);
 		}
 
-		return false;
+		if (r == null)
+			return false;
+
+		r.addClient(user);
+		return true;
+	}
+
+	/**
+	 * Moves a room, archived or not, to another shard of this node. Its
+	 * members stay connected and its commands run in order throughout.
+	 * 
+	 * @param roomID the room to move
+	 * @param shard the index of the shard to move it to
+	 * @return false if there is no such room or shard
+	 */
+	public boolean migrate(int roomID, int shard)
+	{
+		ChattRoom r = rooms.get(roomID);
+		if (r == null)
+			r = archived.get(roomID);
+		if (r == null || shard < 0 || shard >= shards.length)
+			return false;
+
+		ChattRoom room = r;
+		room.mailbox.execute(() -> room.moveTo(shards[shard]));
+		return true;
+	}
+
+	/**
+	 * Hands a room to another node of the cluster. Its members stay connected
+	 * and are sent there, and the room runs there from then on.
+	 * 
+	 * @param roomID the room to hand over
+	 * @param node the name of the node to take it
+	 * @return false if there is no such room here or no such node
+	 */
+	public boolean migrate(int roomID, String node)
+	{
+		ChattRoom room = rooms.get(roomID);
+		if (room == null || cluster == null || !cluster.peers.containsKey(node))
+			return false;
+
+		room.mailbox.execute(() -> room.handOff(node));
+		return true;
+	}
+
+	/**
+	 * Takes a room out of the room list and into the archive. Called from the
+	 * room's mailbox.
+	 */
+	void archive(ChattRoom r)
+	{
+		archived.put(r.roomID, r);
+		rooms.remove(r.roomID, r);
+		roomsArchived.incrementAndGet();
+		roomsChanged();
+	}
+
+	/**
+	 * Puts an archived room back in the room list. Called from the room's
+	 * mailbox.
+	 */
+	void restore(ChattRoom r)
+	{
+		rooms.put(r.roomID, r);
+		archived.remove(r.roomID, r);
+		roomsRestored.incrementAndGet();
+		roomsChanged();
+	}
+
+	/**
+	 * Forgets an archived room. Called from the room's mailbox.
+	 */
+	void remove(ChattRoom r)
+	{
+		if (archived.remove(r.roomID, r))
+			roomsRemoved.incrementAndGet();
 	}
 }
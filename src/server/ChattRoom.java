@@ -3,150 +3,286 @@
  */
 package server;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.StreamCorruptedException;
-import java.net.SocketException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.Set;
-import java.util.TreeSet;
-
-import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import client.Client;
 import commands.Command;
-import commands.clientsent.CreateRoomCommand;
-import commands.clientsent.DisconnectCommand;
+import commands.serversent.MessageBatchCommand;
 import commands.serversent.MessagePackageCommand;
 import commands.serversent.RoomNamePackage;
-import commands.serversent.RoomPackageCommand;
+import server.journal.Journal;
+import server.net.Frame;
 import shared.Message;
-import shared.RoomPackage;
+import shared.Protocol;
 
 /**
  * This object is the server that does the communicating with the clients. It
  * distributes messages and handles events such as user connection and
- * disconnection.
+ * disconnection. Everything a room does runs in its {@link Mailbox}, so
+ * commands are handled and messages delivered in one order for every member.
  *
  * @author Peter Cortes
  */
-public class ChattRoom implements Server
+public class ChattRoom implements Room
 {
-	private static int roomsCreated = 0;
+	/**
+	 * Where a room is in its life. A room is active while it has members and
+	 * idle while it has none. A room created by a client that stays idle for
+	 * {@link Config#ROOM_IDLE_GRACE} is archived: it leaves the room list and
+	 * holds no timers, but a client switching to its id brings it back. After
+	 * {@link Config#ROOM_ARCHIVE_GRACE} an archived room is removed for good.
+	 * A room handed to another node of the cluster is moved, and is run there
+	 * from then on.
+	 */
+	public enum State
+	{
+		ACTIVE, IDLE, ARCHIVED, REMOVED, MOVED
+	}
 
+	/**
+	 * Hands out room ids, which are never reused so that a client can't
+	 * switch into a different room by the id of one that was removed
+	 */
+	private static final AtomicInteger roomsCreated = new AtomicInteger();
+
+	/**
+	 * @param name the room's name
+	 * @return a room that is archived once it has been empty for
+	 *         {@link Config#ROOM_IDLE_GRACE}
+	 */
 	public static ChattRoom createNewRoom(String name)
 	{
-		return new ChattRoom(++roomsCreated, name);
+		return new ChattRoom(roomsCreated.incrementAndGet(), name, false, true);
+	}
+
+	/**
+	 * @param id an id handed out by {@link #newRoomID(int)}, possibly on
+	 *            another node
+	 * @param name the room's name
+	 * @return a room that is archived once it has been empty for
+	 *         {@link Config#ROOM_IDLE_GRACE}
+	 */
+	public static ChattRoom createNewRoom(int id, String name)
+	{
+		return new ChattRoom(id, name, false, true);
+	}
+
+	/**
+	 * @param id the room's id, the same on every node of a cluster
+	 * @param name the room's name
+	 * @return a room that lasts as long as the server
+	 */
+	public static ChattRoom createPermanentRoom(int id, String name)
+	{
+		roomsCreated.accumulateAndGet(id, Math::max);
+		return new ChattRoom(id, name, true, false);
+	}
+
+	/**
+	 * An id for a new room no other node of the cluster can hand out, the
+	 * node's index being in the low byte.
+	 * 
+	 * @param node this node's index in the cluster
+	 * @return the id
+	 */
+	public static int newRoomID(int node)
+	{
+		return roomsCreated.incrementAndGet() << 8 | node;
 	}
 
 	private ChattHypervisor service;
 	public String roomName = "Default";
 	public final int roomID;
+	public final boolean permanent;
+
+	/**
+	 * The members of this room by {@link MetaClient#key}, safe to iterate
+	 * while others join and leave
+	 */
+	public final ConcurrentHashMap<String, MetaClient> members = new ConcurrentHashMap<String, MetaClient>();
+
+	/**
+	 * The number of members, and of members who have sent a message since
+	 * joining, kept as members come and go so the room list can be built
+	 * from any thread without counting
+	 */
+	private final AtomicInteger memberCount = new AtomicInteger();
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	/**
+	 * Keys of the members counted as active. Only used from the mailbox.
+	 */
+	private final HashSet<String> spoken = new HashSet<String>();
+
+	/**
+	 * The thread this room runs on, along with the other rooms of the shard.
+	 * Only changed from the mailbox.
+	 */
+	public volatile Shard shard;
+
+	/**
+	 * Runs everything this room does, one task at a time
+	 */
+	public final Mailbox mailbox;
+
+	/**
+	 * Every message sent here, or null if none are kept
+	 */
+	private final Journal journal;
+
+	/**
+	 * Messages waiting for the batch window to end, oldest first
+	 */
+	private final ArrayList<Message> pending = new ArrayList<Message>();
+
+	/**
+	 * Messages sent while the journal is read for a handoff, or null if there
+	 * is none under way
+	 */
+	private ArrayList<Message> sentDuringHandOff;
+
+	/**
+	 * Only changed from the mailbox
+	 */
+	private volatile State state = State.IDLE;
 
 	/**
-	 * A map relating usernames to output streams
+	 * Sends the room list to the members, only while there are any
 	 */
-	private Set<MetaClient> clients;
+	private TimerWheel.Timeout refresh;
 
 	/**
-	 * This thread reads and executes commands sent by a client
-	 *
-	 * @author Peter Cortes
+	 * Set while the room is waiting to be archived or removed
 	 */
-	private class SingleClientThread implements Runnable
+	private TimerWheel.Timeout lifecycle;
+
+	/**
+	 * @return how many room ids have been handed out
+	 */
+	public static int roomsCreated()
 	{
-		private final MetaClient user;
+		return roomsCreated.get();
+	}
 
-		/**
-		 * This constructor permanently associates this thread with a single
-		 * client.
-		 * 
-		 * @param m the user this thread talks to
-		 */
-		public SingleClientThread(MetaClient m)
-		{
-			this.user = m;
-		}
+	/**
+	 * Carries on handing out room ids after those a replaced process handed
+	 * out, see {@link Handoff}.
+	 * 
+	 * @param created how many ids the other process handed out
+	 */
+	public static void resumeRoomIDs(int created)
+	{
+		roomsCreated.accumulateAndGet(created, Math::max);
+	}
 
-		public void run()
-		{
-			try
-			{
-				while (clients.contains(user))
-				{
-					// read a command from the client, execute on this server
-					@SuppressWarnings("unchecked")
-					Command<Server> command = (Command<Server>) user.instream.readObject();
-					command.runOn(ChattRoom.this);
-
-					if (command instanceof CreateRoomCommand)
-					{
-						clients.remove(user);
-						return;
-					}
-
-					// terminate if client is disconnecting
-					if (command instanceof DisconnectCommand)
-					{
-						user.instream.close();
-						return;
-					}
-				}
+	/**
+	 * @param id the room's id on the node or process that handed it over
+	 * @param name the room's name
+	 * @param permanent whether the room lasts as long as the server
+	 * @return an empty room to take the members of a room handed over by
+	 *         another node, or to stand in for one of a replaced process
+	 */
+	public static ChattRoom adoptRoom(int id, String name, boolean permanent)
+	{
+		return new ChattRoom(id, name, permanent, false);
+	}
 
-				return;
-			}
-			catch (StreamCorruptedException e)
-			{
-				removeUser();
-				System.err.println(ChattRoom.this + " connection to " + user + " corrupted (" + e.getMessage() + ")");
-			}
-			catch (EOFException | SocketException e)
-			{
-				removeUser();
-				System.err.println(ChattRoom.this + " connection to " + user + " lost");
-			}
-			catch (Exception e)
-			{
-				System.err.println(ChattRoom.this + " an unexpected error occured");
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * @param id the room's id on the node that handed it over
+	 * @param name the room's name
+	 * @param permanent whether the room lasts as long as the server
+	 * @param history the room's last messages there, oldest first, to start
+	 *            its journal here with
+	 * @return an empty room to take the members of a room handed over by
+	 *         another node
+	 */
+	public static ChattRoom adoptRoom(int id, String name, boolean permanent, List<Message> history)
+	{
+		// anything left from when the room was last here is out of date
+		ChattRoom room = new ChattRoom(id, name, permanent, true);
+		if (room.journal != null && history != null)
+			for (Message m: history)
+				room.journal.append(m);
 
-		/**
-		 * This method removes a name from the output map and notifies its
-		 * observers that it's been removed.
-		 */
-		private void removeUser()
-		{
-			clients.remove(user);
-			service.currentUsers.remove(user);
-		}
+		return room;
 	}
 
-	private ChattRoom(int identifier, String desiredName)
+	private ChattRoom(int identifier, String desiredName, boolean permanent, boolean fresh)
 	{
 		roomID = identifier;
+		this.permanent = permanent;
 
 		if (desiredName != null)
 			roomName = desiredName;
 
-		clients = new TreeSet<MetaClient>();
 		service = ChattHypervisor.getInstance();
+		journal = service.journals == null ? null : new Journal(service.journals, roomID, fresh);
+		shard = service.shardFor(roomID);
+		mailbox = new Mailbox(shard);
+
+		// in case nobody ever makes it in
+		mailbox.execute(this::idle);
+	}
 
-		Timer t = new Timer(10000, ae -> sendRoomsToClients());
-		t.setRepeats(true);
-		t.start();
+	/**
+	 * @return where this room is in its life
+	 */
+	public State state()
+	{
+		return state;
 	}
 
+	@Override
 	public void addClient(MetaClient m)
 	{
-		clients.add(m);
-		new Thread(new SingleClientThread(m)).start();
+		m.room = this;
+		mailbox.execute(() -> join(m));
+	}
+
+	private void join(MetaClient m)
+	{
+		// gone while on its way here
+		if (!m.connection.isOpen())
+		{
+			service.logout(m);
+			return;
+		}
+
+		// removed while the client was on its way here
+		if (state == State.REMOVED)
+		{
+			service.switchClientToRoom(m, ChattHypervisor.LOBBY);
+			return;
+		}
+
+		// handed to another node; follow it there
+		if (state == State.MOVED)
+		{
+			if (!service.switchClientToRoom(m, roomID))
+				service.switchClientToRoom(m, ChattHypervisor.LOBBY);
+			return;
+		}
+
+		if (state == State.ARCHIVED)
+		{
+			service.restore(this);
+			System.out.println(this + " restored \"" + roomName + "\"");
+		}
+
+		if (members.put(m.key, m) == null)
+			memberCount.incrementAndGet();
+		service.membersChanged();
+		activate();
+
 		System.out.println(ChattRoom.this + " added client \"" + m.username + "\"");
 		try
 		{
-			m.outstream.writeObject(new RoomNamePackage(roomName));
+			m.send(new RoomNamePackage(roomName));
 		}
 		catch (IOException e)
 		{
@@ -154,141 +290,584 @@ public class ChattRoom implements Server
 			e.printStackTrace();
 		}
 
+		replay(m);
+		sendDirectory(m, service.directory());
 		sendMessageToClients(new Message(m.username + " connected to " + roomName));
 	}
 
 	/**
-	 * Called periodically to send all clients a list of available rooms. This
-	 * method gets the room list from the hypervisor and makes a RoomPackage
-	 * from each. It then sends a command with this list to all the clients.
+	 * Sends a member that just joined the last messages kept in the journal.
+	 * They are read by the journal writer, which opens the journal first if
+	 * need be, so the disk never holds up this room's shard; anything sent
+	 * while they are being read may reach the member before them.
+	 * 
+	 * @param m the member
 	 */
-	private void sendRoomsToClients()
+	private void replay(MetaClient m)
 	{
-		if (clients.size() == 0)
+		if (journal == null || Config.JOURNAL_REPLAY <= 0)
 			return;
 
-		// System.out.println(this + " sending rooms to clients");
-		LinkedList<RoomPackage> out = new LinkedList<RoomPackage>();
-		for (ChattRoom r: service.rooms.values())
-			out.addLast(new RoomPackage(r.clients.size() + ": " + r.roomName, r.roomID));
+		journal.tail(Config.JOURNAL_REPLAY, history -> mailbox.execute(() ->
+		{
+			if (history.isEmpty() || !isMember(m))
+				return;
 
-		RoomPackageCommand c = new RoomPackageCommand(out);
+			try
+			{
+				m.send(new MessageBatchCommand(new ArrayList<Message>(history)));
+			}
+			catch (IOException e)
+			{
+				System.err.println(this + " couldn't replay its journal to " + m + " (" + e.getMessage() + ")");
+			}
+		}));
+	}
 
-		try
+	/**
+	 * Makes a client a member as it was in the room this one took over, without
+	 * telling anyone it joined.
+	 * 
+	 * @param m the member
+	 * @param active whether it counted as active there
+	 */
+	public void adopt(MetaClient m, boolean active)
+	{
+		m.room = this;
+		m.directoryVersion = 0;
+		mailbox.execute(() ->
 		{
-			for (MetaClient m: clients)
-				m.outstream.writeObject(c);
-		}
-		catch (IOException e)
+			if (members.put(m.key, m) == null)
+				memberCount.incrementAndGet();
+			if (active && spoken.add(m.key))
+				activeCount.incrementAndGet();
+
+			service.membersChanged();
+			activate();
+		});
+	}
+
+	/**
+	 * Queues a command sent by a member of this room, to run after everything
+	 * already in the room's mailbox.
+	 * 
+	 * @param user the client that sent the command
+	 * @param command the command to run
+	 */
+	@Override
+	public void submit(MetaClient user, Command<Server> command)
+	{
+		user.queued();
+		mailbox.execute(() ->
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			user.ran();
+			execute(user, command);
+		});
+	}
+
+	private void execute(MetaClient user, Command<Server> command)
+	{
+		// the client moved on after sending this; let its new room have it
+		if (!isMember(user))
+		{
+			Room current = user.room;
+			if (current != this)
+				current.submit(user, command);
+			return;
 		}
+
+		user.lastSeen = System.currentTimeMillis();
+		command.runOn(new RoomContext(this, user));
+	}
+
+	@Override
+	public void timeOut(MetaClient user)
+	{
+		mailbox.execute(() ->
+		{
+			if (!isMember(user))
+			{
+				if (user.room != this)
+					user.room.timeOut(user);
+				return;
+			}
+
+			try
+			{
+				user.send(new MessagePackageCommand(new Message("disconnected for being idle")));
+			}
+			catch (IOException e)
+			{
+				// closing anyway
+			}
+
+			user.connection.close();
+			leave(user);
+
+			System.out.println(this + " timed out \"" + user.username + "\"");
+			sendMessageToClients(new Message(user.username + " timed out"));
+		});
+	}
+
+	@Override
+	public void removeUser(MetaClient user)
+	{
+		mailbox.execute(() ->
+		{
+			// handed off with the room; leave it where it went
+			if (state == State.MOVED && user.room != this)
+				user.room.removeUser(user);
+			else
+				leave(user);
+		});
+	}
+
+	private void leave(MetaClient user)
+	{
+		removeMember(user);
+		service.logout(user);
 	}
 
 	/**
-	 * Writes an UpdateClientCommand to every connected user.
+	 * Counts a member as active the first time it sends a message. Only called
+	 * from the mailbox.
 	 * 
-	 * @param message the message to write to the clients
+	 * @param m the member sending a message
 	 */
-	public void sendMessageToClients(Message message)
+	void spoke(MetaClient m)
 	{
-		try
+		if (spoken.add(m.key))
 		{
-			MessagePackageCommand out = new MessagePackageCommand(message);
-			for (MetaClient m: clients)
-				m.outstream.writeObject(out);
+			activeCount.incrementAndGet();
+			service.membersChanged();
 		}
-		catch (IOException e)
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	public int memberCount()
+	{
+		return memberCount.get();
+	}
+
+	/**
+	 * @return the number of members who have sent a message since joining
+	 */
+	public int activeCount()
+	{
+		return activeCount.get();
+	}
+
+	/**
+	 * @return true if this exact client, rather than an earlier client with
+	 *         the same name, is in this room
+	 */
+	public boolean isMember(MetaClient user)
+	{
+		return members.get(user.key) == user;
+	}
+
+	private void removeMember(MetaClient user)
+	{
+		if (!members.remove(user.key, user))
+			return;
+
+		memberCount.decrementAndGet();
+		if (spoken.remove(user.key))
+			activeCount.decrementAndGet();
+
+		service.membersChanged();
+		if (members.isEmpty())
+			idle();
+	}
+
+	/**
+	 * Starts refreshing the members' room lists, and stops any countdown to
+	 * archiving or removing this room.
+	 */
+	private void activate()
+	{
+		state = State.ACTIVE;
+		cancelLifecycle();
+
+		if (refresh == null)
+			startRefresh();
+	}
+
+	private void startRefresh()
+	{
+		refresh = shard.timer.every(Config.ROOM_LIST_INTERVAL, () -> mailbox.execute(this::sendRoomsToClients));
+	}
+
+	private void stopRefresh()
+	{
+		if (refresh != null)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			refresh.cancel();
+			refresh = null;
 		}
 	}
 
-	private MetaClient getUser(String name) throws NoSuchElementException
+	/**
+	 * Stops the room list refresh of a room that has emptied, and starts the
+	 * countdown to archiving it if it can be archived.
+	 */
+	private void idle()
 	{
-		for (Iterator<MetaClient> it = clients.iterator(); it.hasNext();)
+		if (state != State.ACTIVE && state != State.IDLE || !members.isEmpty())
+			return;
+
+		state = State.IDLE;
+		stopRefresh();
+
+		if (!permanent && lifecycle == null && Config.ROOM_IDLE_GRACE > 0)
+			lifecycle = shard.timer.schedule(Config.ROOM_IDLE_GRACE, () -> mailbox.execute(this::archive));
+	}
+
+	/**
+	 * Takes a room that stayed empty out of the room list, keeping it for a
+	 * while in case a client switches back to it.
+	 */
+	private void archive()
+	{
+		lifecycle = null;
+		if (state != State.IDLE || !members.isEmpty())
+			return;
+
+		state = State.ARCHIVED;
+		pending.trimToSize();
+		if (journal != null)
+			journal.close();
+		service.archive(this);
+		System.out.println(this + " archived \"" + roomName + "\" after being empty");
+
+		if (Config.ROOM_ARCHIVE_GRACE > 0)
+			scheduleRemoval();
+		else
+			remove();
+	}
+
+	private void scheduleRemoval()
+	{
+		lifecycle = shard.timer.schedule(Config.ROOM_ARCHIVE_GRACE, () -> mailbox.execute(this::remove));
+	}
+
+	private void remove()
+	{
+		lifecycle = null;
+		if (state != State.ARCHIVED)
+			return;
+
+		state = State.REMOVED;
+		if (journal != null)
+			journal.delete();
+		service.remove(this);
+		System.out.println(this + " removed \"" + roomName + "\"");
+	}
+
+	private void cancelLifecycle()
+	{
+		if (lifecycle != null)
 		{
-			MetaClient test = it.next();
-			if (test.username.equalsIgnoreCase(name))
-				return test;
+			lifecycle.cancel();
+			lifecycle = null;
 		}
+	}
+
+	/**
+	 * Moves this room to another shard of this node. Tasks already in the
+	 * mailbox run on the new shard, in order, after this one. The room's
+	 * timers move with it, any countdown starting again. Only called from the
+	 * mailbox.
+	 * 
+	 * @param target the shard to run on
+	 */
+	public void moveTo(Shard target)
+	{
+		if (target == shard || state == State.REMOVED || state == State.MOVED)
+			return;
+
+		boolean refreshing = refresh != null;
+		boolean counting = lifecycle != null;
+		stopRefresh();
+		cancelLifecycle();
+
+		Shard from = shard;
+		shard = target;
+		mailbox.moveTo(target);
+
+		if (refreshing)
+			startRefresh();
+		if (counting && state == State.IDLE)
+			idle();
+		else if (counting && state == State.ARCHIVED)
+			scheduleRemoval();
 
-		throw new NoSuchElementException();
+		System.out.println(this + " moved from " + from + " to " + target);
 	}
 
 	/**
-	 * Disconnects a given user from the server gracefully.
+	 * Hands this room and its members to another node of the cluster, which
+	 * runs it from then on, along with the last messages in its journal.
+	 * Messages waiting for the batch window are sent first. Commands that
+	 * still reach this node for the room are passed on. Only called from the
+	 * mailbox.
 	 * 
-	 * @param clientName user to disconnect
+	 * @param node the name of the node to take the room
 	 */
-	public void disconnect(String clientName)
+	public void handOff(String node)
 	{
-		try
+		if ((state != State.ACTIVE && state != State.IDLE) || sentDuringHandOff != null)
+			return;
+
+		if (journal == null || Config.JOURNAL_REPLAY <= 0)
 		{
-			MetaClient m = getUser(clientName);
-			m.outstream.flush();
-			m.outstream.close();
-			clients.remove(m); // remove from set
-			service.currentUsers.remove(m);
-
-			System.out.println(this + " disconnected \"" + clientName + "\"");
-			sendMessageToClients(new Message(clientName + " disconnected"));
+			handOff(node, new ArrayList<Message>());
+			return;
 		}
-		catch (NoSuchElementException e)
+
+		// the room carries on while the journal is read, so what it sends
+		// meanwhile goes along too
+		sentDuringHandOff = new ArrayList<Message>();
+		journal.tail(Config.JOURNAL_REPLAY, history -> mailbox.execute(() ->
 		{
-			e.printStackTrace();
+			ArrayList<Message> recent = new ArrayList<Message>(history);
+			recent.addAll(sentDuringHandOff);
+			sentDuringHandOff = null;
+
+			if (state == State.ACTIVE || state == State.IDLE)
+				handOff(node, new ArrayList<Message>(
+						recent.subList(Math.max(0, recent.size() - Config.JOURNAL_REPLAY), recent.size())));
+		}));
+	}
+
+	private void handOff(String node, ArrayList<Message> history)
+	{
+
+		if (!pending.isEmpty())
+			sendPending();
+		stopRefresh();
+		cancelLifecycle();
+
+		ArrayList<MetaClient> leaving = new ArrayList<MetaClient>(members.values());
+		HashSet<String> active = new HashSet<String>(spoken);
+		if (!service.cluster.handOff(this, node, leaving, active, history))
+		{
+			// still here
+			if (members.isEmpty())
+				idle();
+			else
+				activate();
+			return;
+		}
+
+		state = State.MOVED;
+		if (journal != null)
+			journal.delete();
+		members.clear();
+		spoken.clear();
+		memberCount.set(0);
+		activeCount.set(0);
+		System.out.println(this + " handed \"" + roomName + "\" to node " + node);
+	}
+
+	/**
+	 * Called periodically to bring every member's list of available rooms up
+	 * to date. The hypervisor keeps the list, and the updates to it, ready
+	 * for every room to share.
+	 */
+	private void sendRoomsToClients()
+	{
+		if (members.isEmpty())
+			return;
+
+		Directory d = service.directory();
+		for (MetaClient m: members.values())
+			sendDirectory(m, d);
+	}
+
+	/**
+	 * Sends a client the page of the room directory it is browsing, or else
+	 * the room directory as a whole list, or as the changes since the version
+	 * it acknowledged if it can take them.
+	 */
+	private void sendDirectory(MetaClient m, Directory d)
+	{
+		try
+		{
+			RoomQuery query = m.roomQuery;
+			if (query != null)
+				m.send(query.run(d));
+			else if (m.connection.version() < Protocol.DIRECTORY_DELTAS)
+				m.send(d.frame);
+			else if (m.directoryVersion == 0)
+				m.send(d.since(null));
+			else
+				m.send(d.since(service.directory(m.directoryVersion)));
 		}
 		catch (IOException e)
 		{
-			e.printStackTrace();
+			System.err.println(this + " couldn't send rooms to " + m + " (" + e.getMessage() + ")");
 		}
 	}
 
 	/**
-	 * @see server.Server#createAndSwitch(java.lang.String, java.lang.String)
+	 * Sends a client a page of the room directory, and the same page again
+	 * each time the room list is refreshed, in place of the whole directory.
+	 * Only called from this room's mailbox.
+	 * 
+	 * @param m the client browsing
+	 * @param query the page it wants
 	 */
-	@Override
-	public void createAndSwitch(String username, String roomname)
+	void browse(MetaClient m, RoomQuery query)
 	{
-		service.createAndSwitch(getUser(username), roomname);
-		clients.remove(new MetaClient(username));
-		sendMessageToClients(new Message(username + " has left the room"));
+		m.roomQuery = query;
+		sendDirectory(m, service.directory());
 	}
 
-	@Override
-	public void switchRoom(String username, int roomID)
+	/**
+	 * Sends a message to every connected user. Messages arriving within
+	 * {@link Config#BATCH_WINDOW} of each other are sent together. Only called
+	 * from this room's mailbox.
+	 * 
+	 * @param message the message to write to the clients
+	 */
+	public void sendMessageToClients(Message message)
+	{
+		if (journal != null)
+			journal.append(message);
+		if (sentDuringHandOff != null)
+			sentDuringHandOff.add(message);
+
+		pending.add(message);
+
+		if (Config.BATCH_WINDOW <= 0 || pending.size() >= Config.BATCH_MAX)
+			sendPending();
+		else if (pending.size() == 1)
+			shard.timer.schedule(Config.BATCH_WINDOW, () -> mailbox.execute(this::sendPendingLater));
+	}
+
+	private void sendPendingLater()
+	{
+		if (!pending.isEmpty())
+			sendPending();
+	}
+
+	/**
+	 * Broadcasts the waiting messages, as a single message if there is only
+	 * one.
+	 */
+	private void sendPending()
+	{
+		long start = System.nanoTime();
+		if (pending.size() == 1)
+			broadcast(new MessagePackageCommand(pending.get(0)));
+		else
+			broadcast(new MessageBatchCommand(new ArrayList<Message>(pending)));
+
+		pending.clear();
+		Diagnostics.broadcast(System.nanoTime() - start);
+	}
+
+	/**
+	 * Queues a command for every member. The command is encoded at most once
+	 * and the same frame is shared by every member. A member whose connection
+	 * has failed is skipped, and is removed from the room by its own
+	 * connection.
+	 * 
+	 * @param command the command to send
+	 */
+	private void broadcast(Command<Client> command)
+	{
+		broadcast(new Frame(command));
+	}
+
+	/**
+	 * Queues a frame for every member, see {@link #broadcast(Command)}.
+	 */
+	private void broadcast(Frame frame)
+	{
+		for (MetaClient m: members.values())
+		{
+			try
+			{
+				m.send(frame);
+			}
+			catch (IOException e)
+			{
+				System.err.println(this + " couldn't send to " + m + " (" + e.getMessage() + ")");
+			}
+		}
+	}
+
+	/**
+	 * Disconnects a member from the server gracefully.
+	 * 
+	 * @param m the member leaving
+	 */
+	public void disconnect(MetaClient m)
+	{
+		m.connection.close();
+		leave(m);
+
+		System.out.println(this + " disconnected \"" + m.username + "\"");
+		sendMessageToClients(new Message(m.username + " disconnected"));
+	}
+
+	/**
+	 * Moves a member to a room made for them.
+	 * 
+	 * @param m the member moving
+	 * @param roomname the name of the new room
+	 */
+	public void createAndSwitch(MetaClient m, String roomname)
+	{
+		service.createAndSwitch(m, roomname);
+		removeMember(m);
+		sendMessageToClients(new Message(m.username + " has left the room"));
+	}
+
+	/**
+	 * Moves a member to another room, if it exists.
+	 * 
+	 * @param m the member moving
+	 * @param roomID the room to move to
+	 */
+	public void switchRoom(MetaClient m, int roomID)
 	{
 		if (roomID == this.roomID)
 		{
-			System.out.println(this + " " + username + " tried to switch into the same room");
+			System.out.println(this + " " + m + " tried to switch into the same room");
 		}
-		else if (service.switchClientToRoom(getUser(username), roomID))
+		else if (service.switchClientToRoom(m, roomID))
 		{
-			clients.remove(new MetaClient(username));
-			System.out.println(this + " switching " + username + " to room " + roomID);
-			sendMessageToClients(new Message(username + " has left the room"));
+			removeMember(m);
+			System.out.println(this + " switching " + m + " to room " + roomID);
+			sendMessageToClients(new Message(m.username + " has left the room"));
 		}
 		else
 		{
-			System.out.println(this + " " + username + " couldn't be switched to room " + roomID);
+			System.out.println(this + " " + m + " couldn't be switched to room " + roomID);
 		}
 	}
 
-	@Override
-	public void getRoomName(String username)
+	/**
+	 * Tells a member which room they are in.
+	 * 
+	 * @param m the member asking
+	 */
+	public void getRoomName(MetaClient m)
 	{
-		MetaClient m = getUser(username);
 		try
 		{
-			m.outstream.writeObject(new RoomNamePackage(roomName));
+			m.send(new RoomNamePackage(roomName));
 		}
 		catch (IOException e)
 		{
-			System.err.println(this + " couldn't send room name to " + username);
+			System.err.println(this + " couldn't send room name to " + m);
 		}
-	};
+	}
 
 	/**
 	 * @see java.lang.Object#toString()
@@ -296,6 +875,6 @@ public class ChattRoom implements Server
 	@Override
 	public String toString()
 	{
-		return String.format("CR%04dU%02d", roomID, clients.size());
+		return String.format("CR%04dU%02d", roomID, memberCount.get());
 	}
 }
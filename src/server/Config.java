@@ -0,0 +1,385 @@
+/**
+ * 
+ */
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Server settings, read once from system properties at startup. Each field
+ * documents the property that sets it, e.g. {@code -Dchatt.port=9002}.
+ *
+ * @author Peter Cortes
+ */
+public final class Config
+{
+	/**
+	 * How client connections are serviced
+	 */
+	public enum Transport
+	{
+		/**
+		 * a few event loops multiplexing non-blocking channels
+		 */
+		NIO,
+
+		/**
+		 * one blocking platform thread per client
+		 */
+		BLOCKING,
+
+		/**
+		 * one blocking virtual thread per client, where the JVM has them
+		 */
+		VIRTUAL;
+	}
+
+	/**
+	 * What to do when a client's outbound queue is full
+	 */
+	public enum OverflowPolicy
+	{
+		/**
+		 * replace the queued room list with the new one
+		 */
+		COALESCE_ROOM_LISTS,
+
+		/**
+		 * throw away the oldest queued chat message
+		 */
+		DROP_OLDEST_CHAT,
+
+		/**
+		 * give up on the client
+		 */
+		DISCONNECT;
+	}
+
+	/**
+	 * When journal writes are forced out to the disk
+	 */
+	public enum Durability
+	{
+		/**
+		 * never; the operating system writes them back in its own time
+		 */
+		NONE,
+
+		/**
+		 * every {@link Config#JOURNAL_SYNC_INTERVAL}, for everything written
+		 * since
+		 */
+		INTERVAL,
+
+		/**
+		 * after each batch the writer takes off its queue, before the next
+		 */
+		EVERY_BATCH;
+	}
+
+	/**
+	 * chatt.port: the port clients connect to
+	 */
+	public static final int PORT = Integer.getInteger("chatt.port", 9001);
+
+	/**
+	 * chatt.transport: nio, blocking or virtual
+	 */
+	public static final Transport TRANSPORT = Transport.valueOf(System.getProperty("chatt.transport", "nio").toUpperCase());
+
+	/**
+	 * chatt.loops: number of event loop threads used by the nio transport
+	 */
+	public static final int EVENT_LOOPS = Integer.getInteger("chatt.loops", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * chatt.shards: threads the rooms are divided between, each running its
+	 * rooms' mailboxes and timers
+	 */
+	public static final int SHARDS = Math.max(1, Integer.getInteger("chatt.shards", Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * chatt.timer.tick: milliseconds between ticks of the server's timer
+	 * wheel; timers fire up to this late
+	 */
+	public static final int TIMER_TICK = Integer.getInteger("chatt.timer.tick", 100);
+
+	/**
+	 * chatt.timer.fine: milliseconds between ticks of the timer wheels each
+	 * shard and event loop drives, which time the batch and flush windows as
+	 * well as room timers; keep it at or below those windows
+	 */
+	public static final int FINE_TIMER_TICK = Integer.getInteger("chatt.timer.fine", 1);
+
+	/**
+	 * chatt.timer.wheel: buckets in each timer wheel
+	 */
+	public static final int TIMER_WHEEL = Integer.getInteger("chatt.timer.wheel", 512);
+
+	/**
+	 * chatt.rooms.refresh: milliseconds between room directory updates sent
+	 * to each room's members. Every member is written to at least this often,
+	 * even if only to say nothing changed, which doubles as a heartbeat that
+	 * finds dead connections. Member counts in the directory are rebuilt at
+	 * most this often; added and removed rooms show up straight away.
+	 */
+	public static final int ROOM_LIST_INTERVAL = Integer.getInteger("chatt.rooms.refresh", 10000);
+
+	/**
+	 * chatt.directory.history: old room directories kept so that clients
+	 * holding one can be sent just the changes
+	 */
+	public static final int DIRECTORY_HISTORY = Integer.getInteger("chatt.directory.history", 16);
+
+	/**
+	 * chatt.rooms.page.max: most rooms sent in one page when a client browses
+	 * or searches the room directory
+	 */
+	public static final int ROOM_PAGE_MAX = Integer.getInteger("chatt.rooms.page.max", 100);
+
+	/**
+	 * chatt.room.idle: milliseconds a room created by a client may stay empty
+	 * before it is archived, 0 to keep every room
+	 */
+	public static final int ROOM_IDLE_GRACE = Integer.getInteger("chatt.room.idle", 300000);
+
+	/**
+	 * chatt.room.archive: milliseconds an archived room can still be switched
+	 * back into by id before it is forgotten, 0 to forget it at once
+	 */
+	public static final int ROOM_ARCHIVE_GRACE = Integer.getInteger("chatt.room.archive", 3600000);
+
+	/**
+	 * chatt.idle.timeout: milliseconds a client may go without sending a
+	 * command before it is disconnected, 0 for no limit
+	 */
+	public static final int IDLE_TIMEOUT = Integer.getInteger("chatt.idle.timeout", 0);
+
+	/**
+	 * chatt.login.setup: milliseconds a new client has to complete the opening
+	 * exchange
+	 */
+	public static final int LOGIN_SETUP_TIMEOUT = Integer.getInteger("chatt.login.setup", 5000);
+
+	/**
+	 * chatt.login.name: milliseconds a client has to send its name once the
+	 * exchange is done
+	 */
+	public static final int LOGIN_NAME_TIMEOUT = Integer.getInteger("chatt.login.name", 10000);
+
+	/**
+	 * chatt.login.threads: threads running blocking logins
+	 */
+	public static final int LOGIN_THREADS = Integer.getInteger("chatt.login.threads", 16);
+
+	/**
+	 * chatt.login.pending: logins allowed to wait or run at once
+	 */
+	public static final int MAX_PENDING_LOGINS = Integer.getInteger("chatt.login.pending", 1024);
+
+	/**
+	 * chatt.outbound.capacity: commands that can wait to be written to one
+	 * client
+	 */
+	public static final int OUTBOUND_CAPACITY = Integer.getInteger("chatt.outbound.capacity", 256);
+
+	/**
+	 * chatt.outbound.policy: comma separated overflow policies, tried in order
+	 * when a client's queue is full
+	 */
+	public static final List<OverflowPolicy> OVERFLOW_POLICIES = policies(
+			System.getProperty("chatt.outbound.policy", "coalesce_room_lists,drop_oldest_chat,disconnect"));
+
+	/**
+	 * chatt.flush.window: milliseconds a connection waits after something is
+	 * queued for it so that commands sent close together go out in one write,
+	 * 0 to write straight away
+	 */
+	public static final int FLUSH_WINDOW = Integer.getInteger("chatt.flush.window", 1);
+
+	/**
+	 * chatt.flush.bytes: bytes gathered into one write before it is issued
+	 * without waiting for more
+	 */
+	public static final int FLUSH_BYTES = Integer.getInteger("chatt.flush.bytes", 64 * 1024);
+
+	/**
+	 * chatt.batch.window: milliseconds a room collects chat messages before
+	 * sending them to its members together, 0 to send each one straight away
+	 */
+	public static final int BATCH_WINDOW = Integer.getInteger("chatt.batch.window", 2);
+
+	/**
+	 * chatt.batch.max: messages that make a room send its batch without
+	 * waiting for the window to end
+	 */
+	public static final int BATCH_MAX = Integer.getInteger("chatt.batch.max", 64);
+
+	/**
+	 * chatt.mailbox.sender: commands one client can have waiting in its room's
+	 * mailbox; the client isn't read from again until half of them have run.
+	 * 0 for no limit
+	 */
+	public static final int MAILBOX_PER_SENDER = Integer.getInteger("chatt.mailbox.sender", 128);
+
+	/**
+	 * chatt.stream.resetBytes: bytes written to a legacy client's object stream
+	 * before the stream forgets what it has already sent
+	 */
+	public static final int STREAM_RESET_BYTES = Integer.getInteger("chatt.stream.resetBytes", 256 * 1024);
+
+	/**
+	 * chatt.stream.resetObjects: commands written to a legacy client's object
+	 * stream before it is reset, whatever their size
+	 */
+	public static final int STREAM_RESET_OBJECTS = Integer.getInteger("chatt.stream.resetObjects", 1000);
+
+	/**
+	 * chatt.node: this server's name in its cluster, empty to run alone
+	 */
+	public static final String NODE = System.getProperty("chatt.node", "").trim();
+
+	/**
+	 * chatt.cluster: every node of the cluster, this one included, as
+	 * name=host:port pairs separated by commas, where port is the one the
+	 * node listens on for other nodes
+	 */
+	public static final String CLUSTER = System.getProperty("chatt.cluster", "");
+
+	/**
+	 * chatt.cluster.vnodes: points each node has on the ring rooms are hashed
+	 * onto, more spreading rooms more evenly
+	 */
+	public static final int CLUSTER_VNODES = Integer.getInteger("chatt.cluster.vnodes", 128);
+
+	/**
+	 * chatt.cluster.sync: milliseconds between sending the other nodes the
+	 * rooms this node owns, when they have changed
+	 */
+	public static final int CLUSTER_SYNC = Integer.getInteger("chatt.cluster.sync", 1000);
+
+	/**
+	 * chatt.cluster.lease: milliseconds the names another node's clients have
+	 * are held for it after it was last heard from; renewed every
+	 * chatt.cluster.sync
+	 */
+	public static final int CLUSTER_LEASE = Integer.getInteger("chatt.cluster.lease", 5000);
+
+	/**
+	 * chatt.cluster.queue: messages waiting to go to another node before the
+	 * clients sending more are told it can't be reached
+	 */
+	public static final int CLUSTER_QUEUE = Integer.getInteger("chatt.cluster.queue", 65536);
+
+	/**
+	 * chatt.cluster.secret: a file holding the secret every node of the
+	 * cluster shares, at least 16 bytes of it; a node must prove it knows the
+	 * secret before anything it sends is read
+	 */
+	public static final String CLUSTER_SECRET = System.getProperty("chatt.cluster.secret", "");
+
+	/**
+	 * chatt.handoff.port: the loopback port a process started to replace this
+	 * one asks for its rooms on, 0 for none; also has the client port bound
+	 * so that two processes can share it, see {@link Handoff}
+	 */
+	public static final int HANDOFF_PORT = Integer.getInteger("chatt.handoff.port", 0);
+
+	/**
+	 * chatt.takeover: host:port of the handoff port of a running process this
+	 * one replaces, empty for a plain start
+	 */
+	public static final String TAKEOVER = System.getProperty("chatt.takeover", "");
+
+	/**
+	 * chatt.handoff.drain: milliseconds a replaced process spreads
+	 * disconnecting its clients over, so they don't all reconnect at once
+	 */
+	public static final int HANDOFF_DRAIN = Integer.getInteger("chatt.handoff.drain", 5000);
+
+	/**
+	 * chatt.handoff.resume: milliseconds a replacing process puts clients of
+	 * the old one that log in again back in the room they were in
+	 */
+	public static final int HANDOFF_RESUME = Integer.getInteger("chatt.handoff.resume", 60000);
+
+	/**
+	 * chatt.handoff.timeout: milliseconds either process of a handoff waits
+	 * on the other before giving up on it; a replacing process then starts
+	 * afresh
+	 */
+	public static final int HANDOFF_TIMEOUT = Integer.getInteger("chatt.handoff.timeout", 10000);
+
+	/**
+	 * chatt.journal: the directory each room's messages are kept in, see
+	 * {@link server.journal.Journal}; empty to keep none
+	 */
+	public static final String JOURNAL_DIR = System.getProperty("chatt.journal", "");
+
+	/**
+	 * chatt.journal.segment: bytes per journal segment file
+	 */
+	public static final int JOURNAL_SEGMENT = Integer.getInteger("chatt.journal.segment", 8 << 20);
+
+	/**
+	 * chatt.journal.segments: segments kept per room, oldest dropped first
+	 */
+	public static final int JOURNAL_SEGMENTS = Integer.getInteger("chatt.journal.segments", 8);
+
+	/**
+	 * chatt.journal.index: bytes of a segment between entries of its sparse
+	 * index
+	 */
+	public static final int JOURNAL_INDEX = Integer.getInteger("chatt.journal.index", 4096);
+
+	/**
+	 * chatt.journal.queue: messages waiting to be written before more are left
+	 * out of the journals
+	 */
+	public static final int JOURNAL_QUEUE = Integer.getInteger("chatt.journal.queue", 65536);
+
+	/**
+	 * chatt.journal.sync: none, interval or every-batch, see
+	 * {@link Durability}
+	 */
+	public static final Durability JOURNAL_SYNC = Durability
+			.valueOf(System.getProperty("chatt.journal.sync", "interval").toUpperCase().replace('-', '_'));
+
+	/**
+	 * chatt.journal.sync.interval: milliseconds between forcing the journals
+	 * out to the disk when chatt.journal.sync is interval
+	 */
+	public static final int JOURNAL_SYNC_INTERVAL = Integer.getInteger("chatt.journal.sync.interval", 100);
+
+	/**
+	 * chatt.journal.replay: how many of a room's last messages a client is
+	 * sent when it joins
+	 */
+	public static final int JOURNAL_REPLAY = Integer.getInteger("chatt.journal.replay", 20);
+
+	/**
+	 * chatt.console: whether to read operator commands, such as moving a room,
+	 * from standard input; see {@link Console}
+	 */
+	public static final boolean CONSOLE = Boolean.getBoolean("chatt.console");
+
+	/**
+	 * chatt.stats: seconds between diagnostics reports, 0 for none
+	 */
+	public static final int STATS_INTERVAL = Integer.getInteger("chatt.stats", 0);
+
+	private Config()
+	{}
+
+	private static List<OverflowPolicy> policies(String names)
+	{
+		List<OverflowPolicy> out = new ArrayList<OverflowPolicy>();
+		for (String name: names.split(","))
+			if (!name.trim().isEmpty())
+				out.add(OverflowPolicy.valueOf(name.trim().toUpperCase()));
+
+		return Collections.unmodifiableList(out);
+	}
+}
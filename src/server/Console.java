@@ -0,0 +1,96 @@
+/**
+ * 
+ */
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Reads operator commands from standard input, one per line, when
+ * {@link Config#CONSOLE} is set:
+ * 
+ * <pre>
+ * move &lt;room&gt; shard &lt;index&gt;   run a room on another shard of this node
+ * move &lt;room&gt; node &lt;name&gt;     hand a room to another node of the cluster
+ * </pre>
+ *
+ * @author Peter Cortes
+ */
+public class Console implements Runnable
+{
+	private final ChattHypervisor service;
+
+	public Console(ChattHypervisor service)
+	{
+		this.service = service;
+	}
+
+	/**
+	 * Starts reading commands if the console was asked for.
+	 */
+	public void start()
+	{
+		if (!Config.CONSOLE)
+			return;
+
+		Thread t = new Thread(this, "chatt-console");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run()
+	{
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in)))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (!line.trim().isEmpty())
+					System.out.println(execute(line.trim().split("\\s+")));
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("console closed (" + e.getMessage() + ")");
+		}
+	}
+
+	private String execute(String[] words)
+	{
+		if (words.length != 4 || !words[0].equals("move"))
+			return "usage: move <room> shard <index> | move <room> node <name>";
+
+		int roomID;
+		try
+		{
+			roomID = Integer.parseInt(words[1]);
+		}
+		catch (NumberFormatException e)
+		{
+			return "not a room id: " + words[1];
+		}
+
+		boolean moving;
+		if (words[2].equals("shard"))
+		{
+			try
+			{
+				moving = service.migrate(roomID, Integer.parseInt(words[3]));
+			}
+			catch (NumberFormatException e)
+			{
+				return "not a shard index: " + words[3];
+			}
+		}
+		else if (words[2].equals("node"))
+			moving = service.migrate(roomID, words[3]);
+		else
+			return "move to a shard or a node, not a " + words[2];
+
+		return moving ? "moving room " + roomID + " to " + words[2] + " " + words[3]
+				: "no room " + roomID + " here, or no " + words[2] + " " + words[3];
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * 
+ */
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.cluster.Cluster;
+import server.cluster.Peer;
+import server.net.BlockingConnection;
+import server.net.OutboundQueue;
+import server.net.WriteStats;
+
+/**
+ * Collects runtime figures used to compare server configurations, and prints
+ * them every {@link Config#STATS_INTERVAL} seconds when that is set.
+ *
+ * @author Peter Cortes
+ */
+public class Diagnostics implements Runnable
+{
+	/**
+	 * How many of the clients with the deepest queues to list
+	 */
+	private static final int SLOWEST = 5;
+
+	private final ChattHypervisor service;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	/**
+	 * cpu time of each carrier thread at the last report
+	 */
+	private HashMap<Long, Long> carrierTimes = new HashMap<Long, Long>();
+	private long lastReport = System.nanoTime();
+
+	private static final AtomicLong broadcasts = new AtomicLong();
+	private static final AtomicLong broadcastNanos = new AtomicLong();
+	private static final AtomicLong broadcastMax = new AtomicLong();
+
+	public Diagnostics(ChattHypervisor service)
+	{
+		this.service = service;
+	}
+
+	/**
+	 * Starts the reporting thread if reports were asked for.
+	 */
+	public void start()
+	{
+		if (Config.STATS_INTERVAL <= 0)
+			return;
+
+		Thread t = new Thread(this, "chatt-diagnostics");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Records how long one broadcast to a room took.
+	 * 
+	 * @param nanos time spent handing the command to every member
+	 */
+	public static void broadcast(long nanos)
+	{
+		broadcasts.incrementAndGet();
+		broadcastNanos.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = broadcastMax.get()) && !broadcastMax.compareAndSet(max, nanos))
+			;
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				Thread.sleep(Config.STATS_INTERVAL * 1000L);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			System.out.println(report());
+		}
+	}
+
+	/**
+	 * Builds a report covering the time since the previous one.
+	 * 
+	 * @return the report text
+	 */
+	public synchronized String report()
+	{
+		long now = System.nanoTime();
+		long elapsed = Math.max(1, now - lastReport);
+		lastReport = now;
+
+		int users = service.currentUsers.size();
+		long heap = memory.getHeapMemoryUsage().getUsed();
+
+		StringBuilder out = new StringBuilder("diagnostics:\n");
+		out.append(String.format("  users: %d, heap %.1f MB (%.1f KB per user)%n", users, heap / 1048576.0,
+				users == 0 ? 0.0 : heap / 1024.0 / users));
+		out.append(String.format("  threads: %d platform (peak %d), %d %s session threads (%d started)%n",
+				threads.getThreadCount(), threads.getPeakThreadCount(), SessionThreads.live(),
+				SessionThreads.isVirtual() ? "virtual" : "platform", SessionThreads.started()));
+
+		out.append("  logins: " + service.logins + "\n");
+		if (Handoff.sharesPort())
+			out.append("  handoff: " + service.handoff.resumed() + " clients back in their rooms\n");
+		out.append(mailboxReport());
+		out.append(outboundReport());
+		out.append("  writes: " + WriteStats.drain() + "\n");
+		if (service.journals != null)
+			out.append("  journal: " + service.journals.report() + "\n");
+
+		if (service.cluster != null)
+			out.append(clusterReport());
+
+		if (SessionThreads.isVirtual())
+			out.append(carrierReport(elapsed));
+
+		long count = broadcasts.getAndSet(0);
+		long total = broadcastNanos.getAndSet(0);
+		long max = broadcastMax.getAndSet(0);
+		out.append(String.format("  broadcasts: %d, mean %.3f ms, max %.3f ms", count,
+				count == 0 ? 0.0 : total / 1e6 / count, max / 1e6));
+
+		return out.toString();
+	}
+
+	/**
+	 * Names this node and shows the links to the others.
+	 */
+	private String clusterReport()
+	{
+		Cluster cluster = service.cluster;
+
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("  cluster: node %s, %d visitors, %d remote rooms, %d messages received%n",
+				cluster.self, cluster.visitors(), cluster.remoteRooms().size(), cluster.received()));
+		out.append(String.format("  migrations: %d rooms moved, %d commands forwarded%n", cluster.moved(),
+				cluster.forwarded()));
+		out.append(String.format("  presence: %d names on other nodes, %d conflicts%n", cluster.presence.size(),
+				cluster.presence.conflicts()));
+		for (Peer p: cluster.peers.values())
+			out.append(String.format("    %s: %s, %d sent, %d waiting, %d resent, %d dropped%n", p,
+					p.isConnected() ? "up" : "down", p.sent(), p.depth(), p.resent(), p.dropped()));
+
+		return out.toString();
+	}
+
+	/**
+	 * Totals the work waiting in room mailboxes and names the busiest room.
+	 */
+	private String mailboxReport()
+	{
+		int queued = 0, idle = 0, timers = service.timer.pending();
+		int[] perShard = new int[service.shards.length];
+		ChattRoom busiest = null;
+		for (ChattRoom r: service.rooms.values())
+		{
+			if (r.state() == ChattRoom.State.IDLE)
+				idle++;
+			perShard[r.shard.index]++;
+
+			queued += r.mailbox.depth();
+			if (busiest == null || r.mailbox.highWater() > busiest.mailbox.highWater())
+				busiest = r;
+		}
+
+		for (Shard s: service.shards)
+			timers += s.timer.pending();
+
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("  rooms: %d, %d tasks queued in mailboxes, %d timers pending%n", service.rooms.size(),
+				queued, timers));
+		out.append(String.format("    %d idle, %d archived; %d archived, %d restored, %d removed in all%n", idle,
+				service.archived.size(), service.roomsArchived.get(), service.roomsRestored.get(),
+				service.roomsRemoved.get()));
+		for (Shard s: service.shards)
+			out.append(String.format("    %s: %d rooms, %d queued, %d run%n", s, perShard[s.index], s.depth(),
+					s.executed()));
+		if (busiest != null && busiest.mailbox.highWater() > 0)
+			out.append(String.format("    busiest %s: depth %d (max %d), limit %d per sender, %d pauses%n", busiest,
+					busiest.mailbox.depth(), busiest.mailbox.highWater(), Config.MAILBOX_PER_SENDER,
+					MetaClient.pauses()));
+
+		return out.toString();
+	}
+
+	/**
+	 * A member and how many commands were waiting for it
+	 */
+	private static final class Queued
+	{
+		final MetaClient member;
+		final int depth;
+
+		Queued(MetaClient member, int depth)
+		{
+			this.member = member;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Summarizes outbound queues and names the clients furthest behind, then
+	 * the memory connections hold on to between writes.
+	 */
+	private String outboundReport()
+	{
+		List<MetaClient> members = new ArrayList<MetaClient>();
+		for (ChattRoom r: service.rooms.values())
+			members.addAll(r.members.values());
+
+		// event loops keep changing the depths, so sort on one reading of each
+		List<Queued> behind = new ArrayList<Queued>(members.size());
+		long queued = 0;
+		for (MetaClient m: members)
+		{
+			Queued q = new Queued(m, m.connection.outbound().depth());
+			queued += q.depth;
+			if (q.depth > 0)
+				behind.add(q);
+		}
+
+		behind.sort((a, b) -> Integer.compare(b.depth, a.depth));
+
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("  outbound: %d queued, %s%n", queued, OutboundQueue.totals()));
+		for (Queued q: behind.subList(0, Math.min(SLOWEST, behind.size())))
+			out.append("    " + q.member + ": " + q.member.connection.outbound() + "\n");
+
+		long retained = 0;
+		MetaClient largest = null;
+		for (MetaClient m: members)
+		{
+			long r = m.connection.retained();
+			retained += r;
+			if (largest == null || r > largest.connection.retained())
+				largest = m;
+		}
+
+		out.append(String.format("  streams: %.1f KB retained (%.1f KB per user), %d legacy stream resets%n",
+				retained / 1024.0, members.isEmpty() ? 0.0 : retained / 1024.0 / members.size(),
+				BlockingConnection.streamResets()));
+		if (largest != null && largest.connection.retained() > 0)
+			out.append(String.format("    largest %s: %.1f KB%n", largest, largest.connection.retained() / 1024.0));
+
+		return out.toString();
+	}
+
+	/**
+	 * Measures how busy the threads carrying virtual threads were, as the cpu
+	 * time they used divided by the time they had available.
+	 */
+	private String carrierReport(long elapsed)
+	{
+		HashMap<Long, Long> times = new HashMap<Long, Long>();
+		long used = 0;
+
+		for (ThreadInfo info: threads.getThreadInfo(threads.getAllThreadIds()))
+		{
+			// the virtual thread scheduler's workers; the common pool's are
+			// named differently
+			if (info == null || !info.getThreadName().matches("ForkJoinPool-\\d+-worker-\\d+"))
+				continue;
+
+			long cpu = threads.getThreadCpuTime(info.getThreadId());
+			if (cpu < 0)
+				continue;
+
+			Long before = carrierTimes.get(info.getThreadId());
+			used += cpu - (before == null ? 0 : before);
+			times.put(info.getThreadId(), cpu);
+		}
+
+		carrierTimes = times;
+		double busy = times.isEmpty() ? 0.0 : 100.0 * used / ((double) elapsed * times.size());
+		return String.format("  carriers: %d, %.1f%% busy%n", times.size(), busy);
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * 
+ */
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import commands.serversent.RoomDirectoryCommand;
+import commands.serversent.RoomPackageCommand;
+import server.net.Frame;
+import shared.Protocol;
+import shared.RoomPackage;
+
+/**
+ * An unchanging picture of every room and how many members it has, taken
+ * whenever rooms come and go or members move, and shared by every room that
+ * sends out the room list until the next one is taken. Clients that keep
+ * their own copy are sent only what changed since the version they hold.
+ *
+ * @author Peter Cortes
+ */
+public final class Directory
+{
+	/**
+	 * Counts up by one with every snapshot
+	 */
+	public final long version;
+
+	/**
+	 * The rooms, in order of id
+	 */
+	public final List<RoomPackage> rooms;
+
+	/**
+	 * The room list command for clients that take whole lists, already
+	 * encoded for the latest protocol
+	 */
+	public final Frame frame;
+
+	private final HashMap<Integer, RoomPackage> byId = new HashMap<Integer, RoomPackage>();
+
+	private final ArrayList<RoomIndex.Entry> entries = new ArrayList<RoomIndex.Entry>();
+
+	/**
+	 * Built the first time a client browses this snapshot
+	 */
+	private volatile RoomIndex index;
+
+	/**
+	 * Updates to this version, by the version they start from
+	 */
+	private final ConcurrentHashMap<Long, Frame> updates = new ConcurrentHashMap<Long, Frame>();
+
+	/**
+	 * Takes a snapshot of the given rooms.
+	 * 
+	 * @param version the snapshot's version
+	 * @param from the rooms as they are now
+	 * @param remote rooms other nodes of the cluster run, as they last said
+	 */
+	public Directory(long version, Collection<ChattRoom> from, Collection<RoomPackage> remote)
+	{
+		List<RoomPackage> sorted = new ArrayList<RoomPackage>(from.size() + remote.size());
+		for (ChattRoom r: from)
+			sorted.add(new RoomPackage(r.roomName, r.roomID, r.memberCount(), r.activeCount()));
+		sorted.addAll(remote);
+		sorted.sort((a, b) -> Integer.compare(a.id, b.id));
+
+		LinkedList<RoomPackage> list = new LinkedList<RoomPackage>();
+		for (RoomPackage p: sorted)
+		{
+			list.add(p);
+			byId.put(p.id, p);
+			entries.add(new RoomIndex.Entry(p));
+		}
+
+		this.version = version;
+		this.rooms = Collections.unmodifiableList(list);
+		this.frame = new Frame(new RoomPackageCommand(list));
+
+		try
+		{
+			frame.bytes(Protocol.LATEST);
+		}
+		catch (IOException e)
+		{
+			// left for the connections to try again and report
+		}
+	}
+
+	/**
+	 * @return the rooms of this snapshot sorted for paging and searching
+	 */
+	public RoomIndex index()
+	{
+		RoomIndex i = index;
+		if (i == null)
+		{
+			// two clients racing here just sort twice
+			i = new RoomIndex(entries);
+			index = i;
+		}
+
+		return i;
+	}
+
+	/**
+	 * The update that brings a client holding an older directory to this one.
+	 * Updates are built once and shared by every client starting from the
+	 * same version.
+	 * 
+	 * @param base the directory the client holds, or null if it holds none
+	 *            the server still remembers
+	 * @return the changes since base, or the whole directory
+	 */
+	public Frame since(Directory base)
+	{
+		long from = base == null ? 0 : base.version;
+
+		Frame update = updates.get(from);
+		if (update == null)
+		{
+			update = new Frame(base == null ? whole() : changesSince(base));
+			Frame raced = updates.putIfAbsent(from, update);
+			if (raced != null)
+				update = raced;
+		}
+
+		return update;
+	}
+
+	private RoomDirectoryCommand whole()
+	{
+		return new RoomDirectoryCommand(0, version, new ArrayList<RoomPackage>(rooms), new ArrayList<Integer>());
+	}
+
+	private RoomDirectoryCommand changesSince(Directory base)
+	{
+		ArrayList<RoomPackage> changed = new ArrayList<RoomPackage>();
+		for (RoomPackage r: rooms)
+			if (!r.equals(base.byId.get(r.id)))
+				changed.add(r);
+
+		ArrayList<Integer> removed = new ArrayList<Integer>();
+		for (Integer id: base.byId.keySet())
+			if (!byId.containsKey(id))
+				removed.add(id);
+
+		return new RoomDirectoryCommand(base.version, version, changed, removed);
+	}
+}
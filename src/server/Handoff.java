@@ -0,0 +1,437 @@
+/**
+ * 
+ */
+package server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import commands.serversent.MessagePackageCommand;
+import shared.Message;
+
+/**
+ * Replaces a running server process with a new one without losing its rooms.
+ * Both bind the client port with SO_REUSEPORT, so one of them is always
+ * accepting. In order:
+ * <ol>
+ * <li>the new process, started with {@link Config#TAKEOVER}, connects to the
+ * old one's {@link Config#HANDOFF_PORT} and is sent the old one's rooms</li>
+ * <li>the new process starts those rooms, binds the client port and says it's
+ * ready</li>
+ * <li>the old process stops accepting clients and writing its journals, and
+ * sends the room each of its clients is in</li>
+ * <li>the old process disconnects its clients over
+ * {@link Config#HANDOFF_DRAIN}, after everything already sent to them is
+ * written, and exits</li>
+ * <li>clients that log in to the new process again within
+ * {@link Config#HANDOFF_RESUME} are put back in their room</li>
+ * </ol>
+ * A process can't hand its open connections to another, so clients still
+ * reconnect, but a few at a time and to a server that has their rooms.
+ *
+ * @author Peter Cortes
+ */
+public class Handoff
+{
+	private static final String TAKEOVER = "takeover";
+	private static final String READY = "ready";
+
+	/**
+	 * How long an exiting process waits for its clients' queues to empty
+	 */
+	private static final long LINGER = 5000;
+
+	/**
+	 * What a replacing process is sent about the rooms
+	 */
+	static class Snapshot implements Serializable
+	{
+		private static final long serialVersionUID = 5873120945569127712L;
+
+		int roomsCreated;
+		ArrayList<RoomState> rooms = new ArrayList<RoomState>();
+	}
+
+	static class RoomState implements Serializable
+	{
+		private static final long serialVersionUID = -1748210311236611475L;
+
+		int id;
+		String name;
+		boolean permanent;
+	}
+
+	private final ChattHypervisor service;
+
+	/**
+	 * The link to the process being replaced, from the snapshot until its
+	 * clients' rooms arrive
+	 */
+	private Socket predecessor;
+	private ObjectInputStream fromPredecessor;
+	private ObjectOutputStream toPredecessor;
+	private Snapshot snapshot;
+
+	/**
+	 * The room each client of the replaced process was in, by key
+	 */
+	private final ConcurrentHashMap<String, Integer> positions = new ConcurrentHashMap<String, Integer>();
+	private volatile long resumeUntil;
+	private final AtomicLong resumed = new AtomicLong();
+
+	public Handoff(ChattHypervisor service)
+	{
+		this.service = service;
+	}
+
+	/**
+	 * @return true if the client port is to be shared with a process this one
+	 *         replaces or is replaced by
+	 */
+	public static boolean sharesPort()
+	{
+		return Config.HANDOFF_PORT > 0 || !Config.TAKEOVER.isEmpty();
+	}
+
+	/**
+	 * Lets another process bind the client port as well, if this one replaces
+	 * or may be replaced by another. SO_REUSEPORT is looked up by reflection
+	 * since Java 8 doesn't have it.
+	 * 
+	 * @param channel the client port's channel, not yet bound
+	 */
+	@SuppressWarnings("unchecked")
+	public static void sharePort(NetworkChannel channel) throws IOException
+	{
+		if (!sharesPort())
+			return;
+
+		try
+		{
+			channel.setOption((SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null), true);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e)
+		{
+			System.err.println("this JVM can't share the client port with another server process");
+		}
+	}
+
+	/**
+	 * Fetches the rooms of the process this one replaces, if it replaces one.
+	 * Called before the client port is bound.
+	 */
+	public void fetch() throws IOException
+	{
+		if (Config.TAKEOVER.isEmpty())
+			return;
+
+		int colon = Config.TAKEOVER.lastIndexOf(':');
+		predecessor = new Socket();
+		try
+		{
+			predecessor.connect(new InetSocketAddress(Config.TAKEOVER.substring(0, colon),
+					Integer.parseInt(Config.TAKEOVER.substring(colon + 1))), Config.HANDOFF_TIMEOUT);
+			predecessor.setSoTimeout(Config.HANDOFF_TIMEOUT);
+			toPredecessor = new ObjectOutputStream(predecessor.getOutputStream());
+			toPredecessor.writeObject(TAKEOVER);
+			toPredecessor.flush();
+
+			fromPredecessor = new ObjectInputStream(predecessor.getInputStream());
+			snapshot = (Snapshot) fromPredecessor.readObject();
+		}
+		catch (SocketTimeoutException e)
+		{
+			// a process that hangs mustn't keep this one from starting
+			System.err.println("no answer from " + Config.TAKEOVER + ", starting afresh");
+			close(predecessor);
+			return;
+		}
+		catch (ClassNotFoundException | ClassCastException e)
+		{
+			close(predecessor);
+			throw new IOException("not a chatt server at " + Config.TAKEOVER, e);
+		}
+		catch (IOException e)
+		{
+			close(predecessor);
+			throw e;
+		}
+		System.out.println("taking over " + snapshot.rooms.size() + " rooms from " + Config.TAKEOVER);
+	}
+
+	/**
+	 * Starts the fetched rooms, tells the old process this one is accepting
+	 * clients, and learns where its clients were. Called once the client port
+	 * is bound and the permanent rooms exist.
+	 */
+	@SuppressWarnings("unchecked")
+	public void restore()
+	{
+		if (snapshot == null)
+			return;
+
+		ChattRoom.resumeRoomIDs(snapshot.roomsCreated);
+		for (RoomState r: snapshot.rooms)
+		{
+			if (service.rooms.containsKey(r.id) || service.archived.containsKey(r.id))
+				continue;
+
+			ChattRoom room = ChattRoom.adoptRoom(r.id, r.name, r.permanent);
+			service.rooms.put(room.roomID, room);
+		}
+		service.roomsChanged();
+		snapshot = null;
+
+		try
+		{
+			toPredecessor.writeObject(READY);
+			toPredecessor.flush();
+
+			positions.putAll((HashMap<String, Integer>) fromPredecessor.readObject());
+			resumeUntil = System.currentTimeMillis() + Config.HANDOFF_RESUME;
+			System.out.println(positions.size() + " clients can come back to their rooms");
+		}
+		catch (IOException | ClassNotFoundException | ClassCastException e)
+		{
+			System.err.println("didn't learn where the old server's clients were (" + e.getMessage() + ")");
+		}
+
+		close(predecessor);
+	}
+
+	private static void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// done with it either way
+		}
+	}
+
+	/**
+	 * Starts waiting for a process to replace this one, if asked to.
+	 */
+	public void listen()
+	{
+		if (Config.HANDOFF_PORT <= 0)
+			return;
+
+		Thread t = new Thread(this::await, "chatt-handoff");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void await()
+	{
+		// the process this one replaced lets go of the port once it's asked
+		ServerSocket server = null;
+		for (int attempt = 0; server == null; attempt++)
+		{
+			try
+			{
+				server = new ServerSocket(Config.HANDOFF_PORT, 1, InetAddress.getLoopbackAddress());
+			}
+			catch (BindException e)
+			{
+				if (attempt == 50)
+				{
+					System.err.println("can't listen for a replacement on port " + Config.HANDOFF_PORT);
+					return;
+				}
+				pause(100);
+			}
+			catch (IOException e)
+			{
+				System.err.println("can't listen for a replacement (" + e.getMessage() + ")");
+				return;
+			}
+		}
+
+		boolean handedOver = false;
+		try (Socket s = accept(server))
+		{
+			s.setSoTimeout(Config.HANDOFF_TIMEOUT);
+			ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+			if (!TAKEOVER.equals(in.readObject()))
+				return;
+
+			ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+			out.writeObject(snapshot());
+			out.flush();
+			if (!READY.equals(in.readObject()))
+				return;
+
+			service.stopAccepting();
+			handedOver = true;
+			if (service.journals != null)
+				service.journals.stop();
+			out.writeObject(positions());
+			out.flush();
+		}
+		catch (IOException | ClassNotFoundException e)
+		{
+			if (!handedOver)
+			{
+				// free the port for another try
+				System.err.println("replacement failed (" + e.getMessage() + "), carrying on");
+				listen();
+				return;
+			}
+
+			// the replacement is accepting clients, so these go to it anyway
+			System.err.println("replacement didn't learn where clients were (" + e.getMessage() + ")");
+		}
+
+		drain();
+	}
+
+	private static Socket accept(ServerSocket server) throws IOException
+	{
+		// only ever one replacement
+		try (ServerSocket listening = server)
+		{
+			return listening.accept();
+		}
+	}
+
+	private Snapshot snapshot()
+	{
+		Snapshot s = new Snapshot();
+		s.roomsCreated = ChattRoom.roomsCreated();
+		for (ChattRoom r: service.rooms.values())
+			s.rooms.add(state(r));
+		for (ChattRoom r: service.archived.values())
+			s.rooms.add(state(r));
+
+		return s;
+	}
+
+	private static RoomState state(ChattRoom r)
+	{
+		RoomState s = new RoomState();
+		s.id = r.roomID;
+		s.name = r.roomName;
+		s.permanent = r.permanent;
+		return s;
+	}
+
+	private HashMap<String, Integer> positions()
+	{
+		HashMap<String, Integer> at = new HashMap<String, Integer>();
+		for (MetaClient user: service.currentUsers.values())
+			if (user.room instanceof ChattRoom)
+				at.put(user.key, ((ChattRoom) user.room).roomID);
+
+		return at;
+	}
+
+	/**
+	 * Disconnects this process's clients a few at a time once everything
+	 * already sent to them has been written, then exits.
+	 */
+	private void drain()
+	{
+		ArrayList<MetaClient> users = new ArrayList<MetaClient>(service.currentUsers.values());
+		System.out.println("handing over, disconnecting " + users.size() + " clients");
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < users.size(); i++)
+		{
+			pause(start + (long) Config.HANDOFF_DRAIN * i / users.size() - System.currentTimeMillis());
+			farewell(users.get(i));
+		}
+
+		// any that finished logging in meanwhile
+		for (MetaClient user: service.currentUsers.values())
+			farewell(user);
+
+		long deadline = System.currentTimeMillis() + LINGER;
+		while (System.currentTimeMillis() < deadline && !flushed(users))
+			pause(50);
+
+		System.out.println("handed over");
+		System.exit(0);
+	}
+
+	private void farewell(MetaClient user)
+	{
+		try
+		{
+			user.send(new MessagePackageCommand(new Message("server restarting, reconnect to carry on")));
+		}
+		catch (IOException e)
+		{
+			// closing anyway
+		}
+
+		user.connection.close();
+		user.room.removeUser(user);
+	}
+
+	private static boolean flushed(ArrayList<MetaClient> users)
+	{
+		for (MetaClient user: users)
+			if (!user.connection.outbound().isEmpty())
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param user a client that just logged in
+	 * @return the room it was in on the process this one replaced, or 0
+	 */
+	public int resume(MetaClient user)
+	{
+		if (positions.isEmpty())
+			return 0;
+
+		Integer room = positions.remove(user.key);
+		if (room == null || System.currentTimeMillis() > resumeUntil)
+			return 0;
+
+		resumed.incrementAndGet();
+		return room;
+	}
+
+	/**
+	 * @return clients put back in their room after a handoff
+	 */
+	public long resumed()
+	{
+		return resumed.get();
+	}
+
+	private static void pause(long millis)
+	{
+		if (millis <= 0)
+			return;
+
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
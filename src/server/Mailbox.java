@@ -0,0 +1,121 @@
+/**
+ * 
+ */
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time, in the order they were handed in, on a thread
+ * shared with other mailboxes. Everything a room does goes through its
+ * mailbox, so room state is only ever touched by one thread at a time without
+ * any locking, and however many rooms there are they share the same few
+ * threads.
+ *
+ * @author Peter Cortes
+ */
+public class Mailbox implements Executor
+{
+	/**
+	 * Tasks run before the thread is handed to the next mailbox, so that one busy
+	 * room can't starve the others
+	 */
+	private static final int BURST = 64;
+
+	private volatile Executor pool;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile int highWater = 0;
+
+	/**
+	 * @param pool the thread or threads that run this and other mailboxes
+	 */
+	public Mailbox(Executor pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Queues a task to run after everything already in the mailbox.
+	 * 
+	 * @param task the work to run
+	 */
+	@Override
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+
+		int d = depth.incrementAndGet();
+		if (d > highWater)
+			highWater = d;
+
+		if (scheduled.compareAndSet(false, true))
+			pool.execute(this::run);
+	}
+
+	private void run()
+	{
+		Executor running = pool;
+		try
+		{
+			// a task that moves the mailbox ends the burst, so the rest run
+			// on the new threads only
+			Runnable task;
+			for (int i = 0; i < BURST && pool == running && (task = tasks.poll()) != null; i++)
+			{
+				depth.decrementAndGet();
+				try
+				{
+					task.run();
+				}
+				catch (Exception e)
+				{
+					System.err.println("mailbox task failed");
+					e.printStackTrace();
+				}
+			}
+		}
+		finally
+		{
+			scheduled.set(false);
+		}
+
+		// anything added after the last poll, or left over from a long burst
+		// or a move
+		if (!tasks.isEmpty() && scheduled.compareAndSet(false, true))
+			pool.execute(this::run);
+	}
+
+	/**
+	 * Runs the rest of the tasks, and those handed in later, on other threads.
+	 * Tasks still run one at a time and in order. Only called from one of this
+	 * mailbox's own tasks.
+	 * 
+	 * @param pool the thread or threads to run on from now on
+	 */
+	public void moveTo(Executor pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * @return tasks waiting to run
+	 */
+	public int depth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * @return the most tasks that have been waiting at once
+	 */
+	public int highWater()
+	{
+		return highWater;
+	}
+}
@@ -3,8 +3,14 @@
  */
 package server;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.Client;
+import commands.Command;
+import server.net.Connection;
+import server.net.Frame;
 
 /**
  *
@@ -14,21 +20,61 @@ import java.io.ObjectOutputStream;
 public class MetaClient implements Comparable<MetaClient>
 {
 	public final String username;
-	public final ObjectOutputStream outstream;
-	public final ObjectInputStream instream;
+
+	/**
+	 * The username in the form used to compare and look up clients, so that
+	 * names differing only in case are the same client
+	 */
+	public final String key;
+
+	public final Connection connection;
+
+	/**
+	 * The room this client's commands are executed on
+	 */
+	public volatile Room room;
+
+	/**
+	 * When this client last sent a command, in milliseconds
+	 */
+	public volatile long lastSeen = System.currentTimeMillis();
+
+	/**
+	 * The room directory version this client last acknowledged, 0 for none
+	 */
+	public volatile long directoryVersion = 0;
+
+	/**
+	 * The part of the room directory this client is browsing, sent in place
+	 * of the whole directory, or null if it wants the whole directory
+	 */
+	public volatile RoomQuery roomQuery;
+
+	/**
+	 * Commands this client sent that are waiting in a room's mailbox, and
+	 * whether it is no longer being read from for having too many; guarded by
+	 * this, so that pauses and resumes reach the connection in order
+	 */
+	private int waiting = 0;
+	private boolean paused = false;
+
+	/**
+	 * Times any client was paused for having {@link Config#MAILBOX_PER_SENDER}
+	 * commands waiting
+	 */
+	private static final AtomicLong pauses = new AtomicLong();
 
 	/**
 	 * Initializes all the final fields of this class
 	 * 
 	 * @param username The client's username
-	 * @param outStream The client's sending stream
-	 * @param inStream The client's receiving stream
+	 * @param connection The link to the client
 	 */
-	public MetaClient(String username, ObjectOutputStream outStream, ObjectInputStream inStream)
+	public MetaClient(String username, Connection connection)
 	{
 		this.username = username;
-		this.outstream = outStream;
-		this.instream = inStream;
+		this.key = canonical(username);
+		this.connection = connection;
 	}
 
 	/**
@@ -39,8 +85,71 @@ public class MetaClient implements Comparable<MetaClient>
 	public MetaClient(String username)
 	{
 		this.username = username;
-		this.outstream = null;
-		this.instream = null;
+		this.key = canonical(username);
+		this.connection = null;
+	}
+
+	/**
+	 * @param username a name as typed by a client
+	 * @return the key a client with that name is registered under
+	 */
+	public static String canonical(String username)
+	{
+		return username.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @param command the command to deliver to this client
+	 * @throws IOException if the connection is no longer usable
+	 */
+	public void send(Command<Client> command) throws IOException
+	{
+		connection.send(new Frame(command));
+	}
+
+	/**
+	 * @param frame an encoded command, possibly shared with other clients
+	 * @throws IOException if the connection is no longer usable
+	 */
+	public void send(Frame frame) throws IOException
+	{
+		connection.send(frame);
+	}
+
+	/**
+	 * Counts a command queued on a room for this client, and stops reading
+	 * from the client once too many are waiting.
+	 */
+	synchronized void queued()
+	{
+		if (++waiting >= Config.MAILBOX_PER_SENDER && Config.MAILBOX_PER_SENDER > 0 && !paused && connection != null)
+		{
+			paused = true;
+			pauses.incrementAndGet();
+			connection.pauseReads(true);
+		}
+	}
+
+	/**
+	 * Counts a command of this client's that its room has taken out of the
+	 * mailbox, and reads from the client again once half of what paused it
+	 * has run.
+	 */
+	synchronized void ran()
+	{
+		if (--waiting <= Config.MAILBOX_PER_SENDER / 2 && paused)
+		{
+			paused = false;
+			connection.pauseReads(false);
+		}
+	}
+
+	/**
+	 * @return how many times clients have been paused
+	 */
+	public static long pauses()
+	{
+		return pauses.get();
 	}
 
 	@Override
@@ -55,10 +164,7 @@ public class MetaClient implements Comparable<MetaClient>
 	@Override
 	public int hashCode()
 	{
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((username == null) ? 0 : username.hashCode());
-		return result;
+		return key.hashCode();
 	}
 
 	/**
@@ -73,15 +179,7 @@ public class MetaClient implements Comparable<MetaClient>
 			return false;
 		if (getClass() != obj.getClass())
 			return false;
-		MetaClient other = (MetaClient) obj;
-		if (username == null)
-		{
-			if (other.username != null)
-				return false;
-		}
-		else if (!username.equalsIgnoreCase(other.username))
-			return false;
-		return true;
+		return key.equals(((MetaClient) obj).key);
 	}
 
 	/**
@@ -90,6 +188,6 @@ public class MetaClient implements Comparable<MetaClient>
 	@Override
 	public int compareTo(MetaClient o)
 	{
-		return this.username.toLowerCase().compareTo(o.username.toLowerCase());
+		return key.compareTo(o.key);
 	}
 }
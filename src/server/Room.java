@@ -0,0 +1,47 @@
+/**
+ * 
+ */
+package server;
+
+import commands.Command;
+
+/**
+ * Somewhere a client can be: a room run by this server, or a room another
+ * node of the cluster runs on the client's behalf. Connections only ever deal
+ * with their client's current room through this.
+ *
+ * @author Peter Cortes
+ */
+public interface Room
+{
+	/**
+	 * Moves a client into this room. Commands the client sends from now on are
+	 * run here, after the client has joined.
+	 * 
+	 * @param m the client joining
+	 */
+	public void addClient(MetaClient m);
+
+	/**
+	 * Queues a command sent by a member of this room.
+	 * 
+	 * @param user the client that sent the command
+	 * @param command the command to run
+	 */
+	public void submit(MetaClient user, Command<Server> command);
+
+	/**
+	 * Removes a client whose connection failed from this room and from the
+	 * server.
+	 * 
+	 * @param user the client to remove
+	 */
+	public void removeUser(MetaClient user);
+
+	/**
+	 * Disconnects a client that has been idle for too long.
+	 * 
+	 * @param user the idle client
+	 */
+	public void timeOut(MetaClient user);
+}
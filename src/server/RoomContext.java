@@ -0,0 +1,82 @@
+/**
+ * 
+ */
+package server;
+
+import shared.Message;
+
+/**
+ * What a command sent by a client runs on: the room the client is in, along
+ * with the client itself. The names carried by commands are ignored in favour
+ * of the client the command actually arrived from, so handling a command
+ * never needs a name lookup. Commands are only ever run from the room's
+ * mailbox.
+ *
+ * @author Peter Cortes
+ */
+public class RoomContext implements Server
+{
+	public final ChattRoom room;
+	public final MetaClient session;
+
+	public RoomContext(ChattRoom room, MetaClient session)
+	{
+		this.room = room;
+		this.session = session;
+	}
+
+	@Override
+	public void sendMessageToClients(Message message)
+	{
+		room.spoke(session);
+		room.sendMessageToClients(message);
+	}
+
+	@Override
+	public void disconnect(String clientName)
+	{
+		room.disconnect(session);
+	}
+
+	@Override
+	public void createAndSwitch(String username, String roomname)
+	{
+		room.createAndSwitch(session, roomname);
+	}
+
+	@Override
+	public void switchRoom(String username, int roomID)
+	{
+		room.switchRoom(session, roomID);
+	}
+
+	@Override
+	public void getRoomName(String username)
+	{
+		room.getRoomName(session);
+	}
+
+	@Override
+	public void acknowledgeDirectory(String username, long version)
+	{
+		session.directoryVersion = version;
+	}
+
+	@Override
+	public void listRooms(String username, int offset, int limit)
+	{
+		room.browse(session, RoomQuery.list(offset, limit));
+	}
+
+	@Override
+	public void searchRooms(String username, String prefix, int offset, int limit)
+	{
+		room.browse(session, RoomQuery.search(prefix, offset, limit));
+	}
+
+	@Override
+	public void topRooms(String username, int count)
+	{
+		room.browse(session, RoomQuery.top(count));
+	}
+}
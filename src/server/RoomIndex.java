@@ -0,0 +1,133 @@
+/**
+ * 
+ */
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import commands.serversent.RoomPageCommand;
+import shared.RoomPackage;
+
+/**
+ * The rooms of one {@link Directory}, sorted by name for paging and prefix
+ * search and by member count for finding the busiest. Like the directory it
+ * never changes once built.
+ *
+ * @author Peter Cortes
+ */
+public final class RoomIndex
+{
+	/**
+	 * One room as indexed
+	 */
+	public static final class Entry
+	{
+		/**
+		 * the room's name as searched, ignoring case
+		 */
+		final String key;
+		final RoomPackage room;
+
+		public Entry(RoomPackage room)
+		{
+			this.key = room.name.toLowerCase(Locale.ROOT);
+			this.room = room;
+		}
+	}
+
+	private static final Comparator<Entry> BY_NAME = (a, b) ->
+	{
+		int c = a.key.compareTo(b.key);
+		return c != 0 ? c : Integer.compare(a.room.id, b.room.id);
+	};
+
+	private static final Comparator<Entry> BY_MEMBERS = (a, b) ->
+	{
+		int c = Integer.compare(b.room.members, a.room.members);
+		return c != 0 ? c : BY_NAME.compare(a, b);
+	};
+
+	private final Entry[] byName;
+	private final Entry[] byMembers;
+
+	public RoomIndex(List<Entry> entries)
+	{
+		byName = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(byName, BY_NAME);
+
+		byMembers = byName.clone();
+		Arrays.sort(byMembers, BY_MEMBERS);
+	}
+
+	/**
+	 * @param offset rooms to skip
+	 * @param limit most rooms to return
+	 * @return a page of every room, in order of name
+	 */
+	public RoomPageCommand page(int offset, int limit)
+	{
+		return slice(byName, 0, byName.length, offset, limit);
+	}
+
+	/**
+	 * @param prefix the start of the names wanted, in any case
+	 * @param offset matching rooms to skip
+	 * @param limit most rooms to return
+	 * @return a page of the rooms whose names start with prefix, in order of
+	 *         name
+	 */
+	public RoomPageCommand search(String prefix, int offset, int limit)
+	{
+		String key = prefix.toLowerCase(Locale.ROOT);
+
+		// every name with the prefix sorts between it and the prefix followed
+		// by the highest char
+		int from = lowerBound(key);
+		int to = lowerBound(key + Character.MAX_VALUE);
+		return slice(byName, from, to, offset, limit);
+	}
+
+	/**
+	 * @param count how many rooms to return
+	 * @return the rooms with the most members, busiest first
+	 */
+	public RoomPageCommand top(int count)
+	{
+		return slice(byMembers, 0, byMembers.length, 0, count);
+	}
+
+	/**
+	 * @return the first position in byName whose key isn't less than key
+	 */
+	private int lowerBound(String key)
+	{
+		int low = 0, high = byName.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (byName[mid].key.compareTo(key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	private static RoomPageCommand slice(Entry[] sorted, int from, int to, int offset, int limit)
+	{
+		// offset comes from the client, so it may be far past the end
+		int start = from + Math.min(Math.max(0, offset), to - from);
+		int end = Math.min(to, start + Math.max(0, Math.min(limit, Config.ROOM_PAGE_MAX)));
+
+		ArrayList<RoomPackage> rooms = new ArrayList<RoomPackage>(end - start);
+		for (int i = start; i < end; i++)
+			rooms.add(sorted[i].room);
+
+		return new RoomPageCommand(start - from, to - from, rooms);
+	}
+}
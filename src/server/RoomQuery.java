@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+package server;
+
+import java.io.Serializable;
+
+import commands.serversent.RoomPageCommand;
+
+/**
+ * What part of the room directory a client is browsing, kept so that the
+ * same page can be sent again when the rooms change instead of the whole
+ * directory.
+ *
+ * @author Peter Cortes
+ */
+public final class RoomQuery implements Serializable
+{
+	private static final long serialVersionUID = 2093441788374563807L;
+
+	private enum Kind
+	{
+		LIST, SEARCH, TOP
+	}
+
+	private final Kind kind;
+	private final String prefix;
+	private final int offset;
+	private final int limit;
+
+	private RoomQuery(Kind kind, String prefix, int offset, int limit)
+	{
+		this.kind = kind;
+		this.prefix = prefix;
+		this.offset = Math.max(0, offset);
+		this.limit = Math.max(0, Math.min(limit, Config.ROOM_PAGE_MAX));
+	}
+
+	/**
+	 * @return a query for a page of all rooms by name
+	 */
+	public static RoomQuery list(int offset, int limit)
+	{
+		return new RoomQuery(Kind.LIST, null, offset, limit);
+	}
+
+	/**
+	 * @return a query for a page of the rooms whose names start with prefix
+	 */
+	public static RoomQuery search(String prefix, int offset, int limit)
+	{
+		return new RoomQuery(Kind.SEARCH, prefix == null ? "" : prefix, offset, limit);
+	}
+
+	/**
+	 * @return a query for the count busiest rooms
+	 */
+	public static RoomQuery top(int count)
+	{
+		return new RoomQuery(Kind.TOP, null, 0, count);
+	}
+
+	/**
+	 * @param d the directory to look in
+	 * @return the page of d this query asks for
+	 */
+	public RoomPageCommand run(Directory d)
+	{
+		switch (kind)
+		{
+			case SEARCH:
+				return d.index().search(prefix, offset, limit);
+			case TOP:
+				return d.index().top(limit);
+			default:
+				return d.index().page(offset, limit);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return kind + (prefix == null ? "" : " \"" + prefix + "\"") + " " + offset + "+" + limit;
+	}
+}
@@ -17,4 +17,8 @@ public interface Server
 	public void createAndSwitch(String username, String roomname);
 	public void switchRoom(String username, int roomID);
 	public void getRoomName(String username);
+	public void acknowledgeDirectory(String username, long version);
+	public void listRooms(String username, int offset, int limit);
+	public void searchRooms(String username, String prefix, int offset, int limit);
+	public void topRooms(String username, int count);
 }
@@ -0,0 +1,117 @@
+/**
+ * 
+ */
+package server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that serve blocking client sessions. When the server
+ * runs with {@link Config.Transport#VIRTUAL} and the JVM supports virtual
+ * threads, sessions get virtual threads; otherwise they get platform threads.
+ * The number of running session threads is tracked for diagnostics.
+ *
+ * @author Peter Cortes
+ */
+public final class SessionThreads
+{
+	private static final AtomicInteger live = new AtomicInteger();
+	private static final AtomicInteger started = new AtomicInteger();
+	private static final ThreadFactory factory;
+	private static final boolean virtual;
+
+	static
+	{
+		ThreadFactory f = null;
+		if (Config.TRANSPORT == Config.Transport.VIRTUAL)
+			f = virtualThreadFactory();
+
+		virtual = f != null;
+		factory = virtual ? f : Executors.defaultThreadFactory();
+	}
+
+	private SessionThreads()
+	{}
+
+	/**
+	 * Looks up the virtual thread builder by reflection so that the server
+	 * still runs on JVMs that don't have one.
+	 * 
+	 * @return a factory for virtual threads, or null if unsupported
+	 */
+	private static ThreadFactory virtualThreadFactory()
+	{
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+			b = builder.getMethod("name", String.class, long.class).invoke(b, "chatt-session-", 0L);
+			return (ThreadFactory) builder.getMethod("factory").invoke(b);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			System.err.println("virtual threads unavailable on this JVM, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a session thread running the given task.
+	 * 
+	 * @param task the work the thread does
+	 * @return the started thread
+	 */
+	public static Thread start(Runnable task)
+	{
+		Thread t = factory().newThread(task);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * @return a factory making counted session threads, for thread pools
+	 */
+	public static ThreadFactory factory()
+	{
+		return task -> {
+			started.incrementAndGet();
+			return factory.newThread(() -> {
+				live.incrementAndGet();
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					live.decrementAndGet();
+				}
+			});
+		};
+	}
+
+	/**
+	 * @return true if sessions are running on virtual threads
+	 */
+	public static boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	/**
+	 * @return the number of session threads currently running
+	 */
+	public static int live()
+	{
+		return live.get();
+	}
+
+	/**
+	 * @return the number of session threads started since launch
+	 */
+	public static int started()
+	{
+		return started.get();
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One thread that owns a share of the rooms: it runs their mailboxes and
+ * ticks a timer wheel of its own for their timers, so rooms on different
+ * shards never contend for a thread, a queue or a timer. Work for a room on
+ * this shard, from any thread, is handed over through a lock-free queue.
+ *
+ * @author Peter Cortes
+ */
+public final class Shard implements Executor, Runnable
+{
+	public final int index;
+
+	/**
+	 * Timers for this shard's rooms, ticked between tasks by the shard's
+	 * thread, so their tasks already run where the rooms do. Ticks every
+	 * {@link Config#FINE_TIMER_TICK}, so that the rooms' batch windows and the
+	 * flush windows of connections written to from here are timed on it too.
+	 */
+	public final TimerWheel timer;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicLong executed = new AtomicLong();
+
+	private static final ThreadLocal<Shard> current = new ThreadLocal<Shard>();
+
+	private Thread thread;
+
+	/**
+	 * Set while the thread is about to park or parked
+	 */
+	private volatile boolean idle = false;
+
+	public Shard(int index)
+	{
+		this.index = index;
+		this.timer = new TimerWheel(Config.FINE_TIMER_TICK, Config.TIMER_WHEEL, toString(), () ->
+		{
+			if (idle)
+				LockSupport.unpark(thread);
+		});
+	}
+
+	public void start()
+	{
+		thread = new Thread(this, "chatt-shard-" + index);
+		thread.start();
+	}
+
+	/**
+	 * Queues a task for this shard's thread. Safe to call from any thread.
+	 * 
+	 * @param task the work to run
+	 */
+	@Override
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		depth.incrementAndGet();
+
+		if (idle)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * @return the shard whose thread is calling, or null if it isn't one
+	 */
+	public static Shard current()
+	{
+		return current.get();
+	}
+
+	public void run()
+	{
+		current.set(this);
+		while (true)
+		{
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+			{
+				depth.decrementAndGet();
+				executed.incrementAndGet();
+				try
+				{
+					task.run();
+				}
+				catch (Exception e)
+				{
+					System.err.println(this + " task failed");
+					e.printStackTrace();
+				}
+
+				if (timer.untilTick() <= 0)
+					timer.tick();
+			}
+
+			if (timer.untilTick() <= 0)
+			{
+				timer.tick();
+				continue;
+			}
+
+			// a task or timer added after the poll above either sees idle set
+			// and unparks us, or is seen by these checks
+			idle = true;
+			long wait = timer.untilDue();
+			if (tasks.isEmpty() && wait > 0)
+				LockSupport.parkNanos(this, wait);
+			idle = false;
+		}
+	}
+
+	/**
+	 * @return tasks waiting for the thread
+	 */
+	public int depth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * @return tasks run since the server started
+	 */
+	public long executed()
+	{
+		return executed.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "chatt-shard-" + index;
+	}
+}
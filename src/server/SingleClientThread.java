@@ -0,0 +1,72 @@
+/**
+ * 
+ */
+package server;
+
+import java.io.EOFException;
+import java.io.StreamCorruptedException;
+import java.net.SocketException;
+import java.nio.channels.AsynchronousCloseException;
+
+import commands.Command;
+import commands.clientsent.DisconnectCommand;
+import server.net.BlockingConnection;
+
+/**
+ * This thread reads commands sent by a client on a blocking connection and
+ * hands them to whichever room the client is in
+ *
+ * @author Peter Cortes
+ */
+class SingleClientThread implements Runnable
+{
+	private final MetaClient user;
+
+	/**
+	 * This constructor permanently associates this thread with a single
+	 * client.
+	 * 
+	 * @param m the user this thread talks to
+	 */
+	public SingleClientThread(MetaClient m)
+	{
+		this.user = m;
+	}
+
+	public void run()
+	{
+		BlockingConnection connection = (BlockingConnection) user.connection;
+		try
+		{
+			// ends when the client disconnects or the connection fails
+			while (true)
+			{
+				// read a command from the client, execute on its room, unless
+				// too many it sent are still waiting there
+				connection.awaitReads();
+				@SuppressWarnings("unchecked")
+				Command<Server> command = (Command<Server>) connection.read();
+				user.room.submit(user, command);
+
+				// client is disconnecting
+				if (command instanceof DisconnectCommand)
+					return;
+			}
+		}
+		catch (StreamCorruptedException e)
+		{
+			user.room.removeUser(user);
+			System.err.println(user.room + " connection to " + user + " corrupted (" + e.getMessage() + ")");
+		}
+		catch (EOFException | SocketException | AsynchronousCloseException e)
+		{
+			user.room.removeUser(user);
+			System.err.println(user.room + " connection to " + user + " lost");
+		}
+		catch (Exception e)
+		{
+			System.err.println(user.room + " an unexpected error occured");
+			e.printStackTrace();
+		}
+	}
+}
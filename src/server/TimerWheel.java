@@ -0,0 +1,364 @@
+/**
+ * 
+ */
+package server;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel: one thread and a ring of buckets, each holding the
+ * timeouts that fall due when the wheel's hand reaches it. Scheduling and
+ * cancelling are constant time no matter how many timeouts are pending, at
+ * the price of firing up to one tick late. With a tick of a millisecond or
+ * so it times the short windows that gather messages into batches as well as
+ * the many coarse timers a chat server needs (room list refreshes, idle
+ * checks, room reaping).
+ * <p>
+ * Tasks run on the wheel's thread and must be short; anything that touches a
+ * room should be passed on to the room's mailbox.
+ *
+ * @author Peter Cortes
+ */
+public class TimerWheel implements Runnable
+{
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * A task waiting on the wheel
+	 */
+	public final class Timeout
+	{
+		private final Runnable task;
+
+		/**
+		 * nanoseconds between runs, 0 to run once
+		 */
+		private final long period;
+
+		/**
+		 * nanoseconds after the wheel started
+		 */
+		private long deadline;
+		private long rounds;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		// the bucket's list
+		private Bucket bucket;
+		private Timeout prev, next;
+
+		private Timeout(Runnable task, long deadline, long period)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/**
+		 * Stops the task from running, or from running again.
+		 * 
+		 * @return false if it already ran and won't run again
+		 */
+		public boolean cancel()
+		{
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+	}
+
+	/**
+	 * The timeouts in one slot of the wheel. Only touched by the thread that
+	 * ticks the wheel.
+	 */
+	private static final class Bucket
+	{
+		private Timeout head, tail;
+
+		void add(Timeout t)
+		{
+			t.bucket = this;
+			t.prev = tail;
+			t.next = null;
+			if (tail == null)
+				head = t;
+			else
+				tail.next = t;
+			tail = t;
+		}
+
+		void remove(Timeout t)
+		{
+			if (t.prev == null)
+				head = t.next;
+			else
+				t.prev.next = t.next;
+
+			if (t.next == null)
+				tail = t.prev;
+			else
+				t.next.prev = t.prev;
+
+			t.bucket = null;
+			t.prev = t.next = null;
+		}
+	}
+
+	private final long tick;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	/**
+	 * Timeouts scheduled or cancelled since the last tick, handed over to the
+	 * wheel thread
+	 */
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final long start = System.nanoTime();
+	private long ticks = 0;
+	private final ArrayList<Timeout> repeating = new ArrayList<Timeout>();
+	private final String name;
+	private final Runnable wake;
+
+	/**
+	 * @param tickMillis how far the hand moves each tick
+	 * @param size number of buckets, rounded up to a power of two
+	 * @param name the name of the wheel's thread
+	 */
+	public TimerWheel(long tickMillis, int size, String name)
+	{
+		this(tickMillis, size, name, null);
+	}
+
+	/**
+	 * @param tickMillis how far the hand moves each tick
+	 * @param size number of buckets, rounded up to a power of two
+	 * @param name the name of the wheel
+	 * @param wake run whenever a timeout is scheduled, to rouse the thread
+	 *            driving the wheel if it is waiting out {@link #untilDue()}
+	 */
+	public TimerWheel(long tickMillis, int size, String name, Runnable wake)
+	{
+		int buckets = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+
+		this.tick = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		this.wheel = new Bucket[buckets];
+		this.mask = buckets - 1;
+		for (int i = 0; i < buckets; i++)
+			wheel[i] = new Bucket();
+
+		this.name = name;
+		this.wake = wake;
+	}
+
+	public void start()
+	{
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Runs a task once after a delay.
+	 * 
+	 * @param millis time to wait
+	 * @param task the work to run
+	 * @return a handle that can cancel the task
+	 */
+	public Timeout schedule(long millis, Runnable task)
+	{
+		return add(task, millis, 0);
+	}
+
+	/**
+	 * Runs a task every so often until it is cancelled.
+	 * 
+	 * @param millis time between runs, and before the first
+	 * @param task the work to repeat
+	 * @return a handle that can cancel the task
+	 */
+	public Timeout every(long millis, Runnable task)
+	{
+		return add(task, millis, TimeUnit.MILLISECONDS.toNanos(Math.max(1, millis)));
+	}
+
+	private Timeout add(Runnable task, long millis, long period)
+	{
+		long deadline = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+		Timeout t = new Timeout(task, deadline, period);
+		pending.incrementAndGet();
+		added.add(t);
+		if (wake != null)
+			wake.run();
+		return t;
+	}
+
+	/**
+	 * @return timeouts scheduled and neither run nor cancelled
+	 */
+	public int pending()
+	{
+		return pending.get();
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			long sleep = untilTick();
+			if (sleep > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+
+			tick();
+		}
+	}
+
+	/**
+	 * @return nanoseconds until the hand next moves, 0 or less if it's due
+	 */
+	public long untilTick()
+	{
+		return (ticks + 1) * tick - (System.nanoTime() - start);
+	}
+
+	/**
+	 * Lets the one thread driving a wheel that was never started sleep through
+	 * ticks with nothing to do. Only called by that thread.
+	 * 
+	 * @return nanoseconds until the hand reaches a bucket with anything in
+	 *         it, 0 or less if that's now
+	 */
+	public long untilDue()
+	{
+		if (!added.isEmpty())
+			return untilTick();
+
+		int i = 0;
+		while (i < wheel.length - 1 && wheel[(int) ((ticks + i) & mask)].head == null)
+			i++;
+
+		return untilTick() + i * tick;
+	}
+
+	/**
+	 * Moves the hand on by one bucket, running whatever falls due. Called by
+	 * the wheel's own thread, or by the one thread that drives a wheel that
+	 * was never started once {@link #untilTick()} says it's time.
+	 */
+	public void tick()
+	{
+		removeCancelled();
+		transferAdded();
+		expire(wheel[(int) (ticks & mask)]);
+		ticks++;
+
+		// periodic tasks go back once the bucket they ran from is done
+		for (Timeout t: repeating)
+			place(t);
+		repeating.clear();
+	}
+
+	private void removeCancelled()
+	{
+		Timeout t;
+		while ((t = cancelled.poll()) != null)
+		{
+			if (t.bucket != null)
+				t.bucket.remove(t);
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Places timeouts scheduled since the last tick in their buckets.
+	 */
+	private void transferAdded()
+	{
+		Timeout t;
+		while ((t = added.poll()) != null)
+		{
+			// cancelled before it reached the wheel; removeCancelled counted it
+			if (t.state.get() == CANCELLED)
+				continue;
+
+			place(t);
+		}
+	}
+
+	private void place(Timeout t)
+	{
+		// ticks run so far when the timeout falls due, never in the past
+		long due = Math.max(t.deadline / tick, ticks);
+		t.rounds = (due - ticks) / wheel.length;
+		wheel[(int) (due & mask)].add(t);
+	}
+
+	/**
+	 * Runs the timeouts in a bucket that are due on this turn of the wheel.
+	 */
+	private void expire(Bucket bucket)
+	{
+		Timeout t = bucket.head;
+		while (t != null)
+		{
+			Timeout next = t.next;
+
+			if (t.rounds > 0)
+				t.rounds--;
+			else
+			{
+				bucket.remove(t);
+				fire(t);
+			}
+
+			t = next;
+		}
+	}
+
+	private void fire(Timeout t)
+	{
+		if (t.period == 0 && !t.state.compareAndSet(PENDING, EXPIRED))
+			return;
+
+		try
+		{
+			t.task.run();
+		}
+		catch (Exception e)
+		{
+			System.err.println(name + " task failed");
+			e.printStackTrace();
+		}
+
+		if (t.period == 0)
+			pending.decrementAndGet();
+		else if (t.state.get() == PENDING)
+		{
+			t.deadline += t.period;
+			repeating.add(t);
+		}
+	}
+}
@@ -0,0 +1,758 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.Client;
+import commands.Command;
+import server.ChattHypervisor;
+import server.ChattRoom;
+import server.Config;
+import server.MetaClient;
+import server.Room;
+import server.Server;
+import server.net.Frame;
+import shared.Message;
+import shared.Protocol;
+import shared.RoomPackage;
+
+/**
+ * This node's part in a cluster of servers. Each room is owned by the one
+ * node its id hashes to on a {@link HashRing}, and clients connected to any
+ * node can be in any room: a client in a room owned elsewhere is represented
+ * there by a member whose {@link RemoteConnection} forwards everything back
+ * here, while its commands are forwarded to the owner through a
+ * {@link RemoteRoom}. Nodes also tell each other which rooms they own so that
+ * every node can list every room.
+ *
+ * @author Peter Cortes
+ */
+public final class Cluster
+{
+	final ChattHypervisor service;
+
+	public final String self;
+
+	/**
+	 * This node's position among the nodes in order of name
+	 */
+	public final int index;
+
+	private final HashRing ring;
+	private final InetSocketAddress listen;
+	private final byte[] secret;
+
+	/**
+	 * Every other node, by name
+	 */
+	public final TreeMap<String, Peer> peers = new TreeMap<String, Peer>();
+
+	/**
+	 * Members of this node's rooms connected to other nodes, by node and key
+	 */
+	private final ConcurrentHashMap<String, MetaClient> visitors = new ConcurrentHashMap<String, MetaClient>();
+
+	/**
+	 * The rooms each other node last said it owns
+	 */
+	private final ConcurrentHashMap<String, List<RoomPackage>> remoteRooms = new ConcurrentHashMap<String, List<RoomPackage>>();
+
+	/**
+	 * Which names other nodes' clients have
+	 */
+	public final Presence presence = new Presence(this);
+
+	/**
+	 * Rooms handed to a node other than the one their id hashes to, by id
+	 */
+	private final ConcurrentHashMap<Integer, String> moved = new ConcurrentHashMap<Integer, String>();
+
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong forwarded = new AtomicLong();
+	private volatile List<RoomPackage> lastSent = Collections.emptyList();
+
+	/**
+	 * @param service the hypervisor this node runs
+	 * @param self this node's name
+	 * @param nodes every node, this one included, as name=host:port pairs
+	 */
+	public Cluster(ChattHypervisor service, String self, String nodes)
+	{
+		this.service = service;
+		this.self = self;
+
+		TreeMap<String, InetSocketAddress> addresses = new TreeMap<String, InetSocketAddress>();
+		for (String node: nodes.split(","))
+		{
+			if (node.trim().isEmpty())
+				continue;
+
+			String[] nameAddress = node.trim().split("=", 2);
+			int colon = nameAddress[1].lastIndexOf(':');
+			addresses.put(nameAddress[0].trim(), new InetSocketAddress(nameAddress[1].substring(0, colon).trim(),
+					Integer.parseInt(nameAddress[1].substring(colon + 1).trim())));
+		}
+
+		if (!addresses.containsKey(self))
+			throw new IllegalArgumentException("node " + self + " isn't in chatt.cluster");
+		if (addresses.size() > 256)
+			throw new IllegalArgumentException("at most 256 nodes fit in a room id");
+
+		this.index = new ArrayList<String>(addresses.keySet()).indexOf(self);
+		this.listen = addresses.get(self);
+		this.ring = new HashRing(addresses.keySet(), Config.CLUSTER_VNODES);
+		this.secret = Link.secret();
+
+		for (String name: addresses.keySet())
+			if (!name.equals(self))
+				peers.put(name, new Peer(self, listen, secret, name, addresses.get(name)));
+	}
+
+	/**
+	 * Starts listening for the other nodes and connecting to them.
+	 */
+	public void start() throws IOException
+	{
+		ServerSocket server = new ServerSocket(listen.getPort(), 50, listen.getAddress());
+		Thread accepter = new Thread(() ->
+		{
+			while (!server.isClosed())
+			{
+				try
+				{
+					Socket s = server.accept();
+					Thread reader = new Thread(() -> read(s), "chatt-link-" + s.getRemoteSocketAddress());
+					reader.setDaemon(true);
+					reader.start();
+				}
+				catch (IOException e)
+				{
+					System.err.println("node accept failed (" + e.getMessage() + ")");
+				}
+			}
+		}, "chatt-link-accepter");
+		accepter.setDaemon(true);
+		accepter.start();
+
+		for (Peer p: peers.values())
+			p.start();
+
+		service.timer.every(Config.CLUSTER_SYNC, this::sync);
+	}
+
+	/**
+	 * @return the name of the node that runs the room: the one it was last
+	 *         handed to, or else the one its id hashes to
+	 */
+	public String owner(int roomID)
+	{
+		String node = moved.get(roomID);
+		return node != null ? node : ring.owner(roomID);
+	}
+
+	/**
+	 * @return true if this node owns the room
+	 */
+	public boolean owns(int roomID)
+	{
+		return owner(roomID).equals(self);
+	}
+
+	/**
+	 * @param roomID a room owned by another node
+	 * @return the room as seen from here
+	 */
+	public RemoteRoom room(int roomID)
+	{
+		return new RemoteRoom(this, peers.get(owner(roomID)), roomID);
+	}
+
+	/**
+	 * @return true if the room's owner last said it has the room, or has just
+	 *         been handed it
+	 */
+	public boolean knows(int roomID)
+	{
+		if (moved.containsKey(roomID))
+			return true;
+
+		List<RoomPackage> rooms = remoteRooms.get(owner(roomID));
+		if (rooms != null)
+			for (RoomPackage r: rooms)
+				if (r.id == roomID)
+					return true;
+
+		return false;
+	}
+
+	/**
+	 * @return every room other nodes own
+	 */
+	public Collection<RoomPackage> remoteRooms()
+	{
+		List<RoomPackage> all = new ArrayList<RoomPackage>();
+		for (List<RoomPackage> rooms: remoteRooms.values())
+			all.addAll(rooms);
+
+		return all;
+	}
+
+	/**
+	 * @return members of this node's rooms connected to other nodes
+	 */
+	public int visitors()
+	{
+		return visitors.size();
+	}
+
+	/**
+	 * @return messages received from other nodes
+	 */
+	public long received()
+	{
+		return received.get();
+	}
+
+	/**
+	 * @return commands passed on to the node a room was handed to
+	 */
+	public long forwarded()
+	{
+		return forwarded.get();
+	}
+
+	/**
+	 * @return rooms run somewhere other than where their id hashes to
+	 */
+	public int moved()
+	{
+		return moved.size();
+	}
+
+	/**
+	 * Hands one of this node's rooms to another node: the other node is sent
+	 * the room and its members, every other node is told where the room went,
+	 * and this node's members are pointed at the room's new home. Called from
+	 * the room's mailbox, with the room's timers stopped and nothing waiting to
+	 * be sent.
+	 * 
+	 * @param room the room leaving
+	 * @param node the node to take it
+	 * @param members the room's members
+	 * @param active the keys of the members counted as active
+	 * @param history the room's last messages, oldest first
+	 * @return false if the node can't be reached, and the room stays here
+	 */
+	public boolean handOff(ChattRoom room, String node, List<MetaClient> members, Set<String> active,
+			ArrayList<Message> history)
+	{
+		Peer target = peers.get(node);
+		if (target == null || !target.isConnected())
+			return false;
+
+		ClusterMessage adopt = new ClusterMessage(ClusterMessage.Kind.ADOPT);
+		adopt.room = room.roomID;
+		adopt.name = room.roomName;
+		adopt.permanent = room.permanent;
+		adopt.history = history;
+		adopt.members = new ArrayList<ClusterMessage.Member>();
+		for (MetaClient m: members)
+		{
+			ClusterMessage.Member d = new ClusterMessage.Member();
+			d.node = m.connection instanceof RemoteConnection ? ((RemoteConnection) m.connection).origin.name : self;
+			d.key = m.key;
+			d.username = m.username;
+			d.version = m.connection.version();
+			d.active = active.contains(m.key);
+			d.query = m.roomQuery;
+			adopt.members.add(d);
+		}
+		if (!target.send(adopt))
+			return false;
+
+		moved.put(room.roomID, node);
+		service.rooms.remove(room.roomID, room);
+		service.roomsChanged();
+
+		ClusterMessage migrated = new ClusterMessage(ClusterMessage.Kind.MIGRATED);
+		migrated.room = room.roomID;
+		migrated.node = node;
+		for (Peer p: peers.values())
+			if (p != target)
+				p.send(migrated);
+
+		// anything still on its way to the room here follows it
+		for (MetaClient m: members)
+		{
+			if (m.connection instanceof RemoteConnection)
+				((RemoteConnection) m.connection).detach();
+			if (m.room == room)
+			{
+				m.directoryVersion = 0;
+				m.room = room(room.roomID);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the other nodes the rooms this node owns, if they changed or a node
+	 * has (re)connected since they were last sent, and renews this node's
+	 * names with them. Runs on the timer.
+	 */
+	private void sync()
+	{
+		ArrayList<RoomPackage> rooms = new ArrayList<RoomPackage>();
+		for (ChattRoom r: service.rooms.values())
+			rooms.add(new RoomPackage(r.roomName, r.roomID, r.memberCount(), r.activeCount()));
+
+		boolean changed = !rooms.equals(lastSent);
+		lastSent = rooms;
+
+		for (Peer p: peers.values())
+		{
+			p.send(p.stale ? presence.all() : new ClusterMessage(ClusterMessage.Kind.LEASE));
+			if (!changed && !p.stale)
+				continue;
+
+			ClusterMessage m = new ClusterMessage(ClusterMessage.Kind.ROOMS);
+			m.node = self;
+			m.rooms = rooms;
+			if (p.send(m))
+				p.stale = false;
+		}
+	}
+
+	/**
+	 * @return true if both lists have the same rooms, whatever their members
+	 */
+	private static boolean sameRooms(List<RoomPackage> a, List<RoomPackage> b)
+	{
+		if (a == null || a.size() != b.size())
+			return false;
+
+		for (int i = 0; i < a.size(); i++)
+			if (a.get(i).id != b.get(i).id || !a.get(i).name.equals(b.get(i).name))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Reads what one other node sends this one, until the link drops.
+	 */
+	private void read(Socket socket)
+	{
+		String node = null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream())))
+		{
+			// the other node's name, checked against where the link comes
+			// from, and its answer to a challenge only a node knowing the
+			// secret can give, before anything it sends is deserialized
+			socket.setSoTimeout(Config.CLUSTER_LEASE);
+			if (in.readInt() != Protocol.MAGIC)
+				throw new StreamCorruptedException("not a node of this cluster");
+			String name = in.readUTF();
+			long session = in.readLong();
+			Peer peer = peers.get(name);
+			if (peer == null || !socket.getInetAddress().equals(peer.address.getAddress()))
+				throw new StreamCorruptedException("not a node of this cluster");
+
+			byte[] challenge = new byte[Link.CHALLENGE];
+			random.nextBytes(challenge);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.write(challenge);
+			out.flush();
+
+			byte[] answer = new byte[Link.ANSWER];
+			in.readFully(answer);
+			if (!MessageDigest.isEqual(answer, Link.answer(secret, challenge, name, session)))
+				throw new StreamCorruptedException("node " + name + " doesn't know the cluster's secret");
+			out.write(Link.ACCEPTED);
+			out.flush();
+			socket.setSoTimeout(0);
+			node = name;
+
+			// a restarted node numbers its messages from the start again, and
+			// its clients are gone whether or not it was given up on
+			boolean restarted;
+			synchronized (peer)
+			{
+				restarted = !peer.gone && peer.heardSession != session;
+				if (peer.heardSession != session)
+				{
+					peer.heardSession = session;
+					peer.heard = 0;
+				}
+				peer.links++;
+				peer.gone = false;
+			}
+			if (restarted)
+				lost(peer);
+
+			while (true)
+			{
+				int length = in.readInt();
+				if (length < 0 || length > Protocol.MAX_FRAME)
+					throw new StreamCorruptedException("frame of " + length + " bytes");
+
+				long number = in.readLong();
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+
+				// skipping what an earlier link already delivered
+				synchronized (peer)
+				{
+					if (number > peer.heard)
+					{
+						ClusterMessage m = Link.decode(payload, length);
+						received.incrementAndGet();
+						receive(peer, m);
+						peer.heard = number;
+					}
+				}
+
+				// acknowledged whenever the link has nothing more to read,
+				// so a busy link isn't slowed by a write per message
+				if (in.available() == 0)
+				{
+					out.writeLong(number);
+					out.flush();
+				}
+			}
+		}
+		catch (EOFException e)
+		{
+			// the other node closed the link
+		}
+		catch (IOException e)
+		{
+			System.err.println("link from " + (node == null ? socket.getRemoteSocketAddress() : "node " + node)
+					+ " failed (" + e.getMessage() + ")");
+		}
+
+		if (node != null)
+		{
+			Peer peer = peers.get(node);
+			synchronized (peer)
+			{
+				peer.links--;
+			}
+
+			// a node that links again in time carries on where it left off
+			service.timer.schedule(Config.CLUSTER_LEASE, () ->
+			{
+				synchronized (peer)
+				{
+					if (peer.links > 0 || peer.gone)
+						return;
+					peer.gone = true;
+				}
+				lost(peer);
+			});
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void receive(Peer from, ClusterMessage m)
+	{
+		// passed on from the node a room was handed over by
+		String origin = m.node != null ? m.node : from.name;
+
+		switch (m.kind)
+		{
+			case ROOMS:
+				if (sameRooms(remoteRooms.put(from.name, m.rooms), m.rooms))
+					service.membersChanged();
+				else
+					service.roomsChanged();
+				break;
+
+			case CREATE:
+				if (service.rooms.get(m.room) == null)
+					service.createRoom(m.room, m.name);
+				visit(from, m);
+				break;
+
+			case JOIN:
+				if (forward(origin, m))
+					break;
+
+				if (origin.equals(self))
+				{
+					// this node's own client, sent here before the room was
+					MetaClient user = service.getUser(m.key);
+					if (user != null && !service.switchClientToRoom(user, m.room))
+						service.switchClientToRoom(user, ChattHypervisor.LOBBY);
+				}
+				else
+					visit(peers.get(origin), m);
+				break;
+
+			case COMMAND:
+			{
+				MetaClient visitor = visitors.get(origin + "/" + m.key);
+				if (visitor != null)
+					visitor.room.submit(visitor, (Command<Server>) m.command);
+				else if (origin.equals(self))
+				{
+					MetaClient user = service.getUser(m.key);
+					if (user != null)
+						user.room.submit(user, (Command<Server>) m.command);
+				}
+				else
+					forward(origin, m);
+				break;
+			}
+
+			case LEAVE:
+			{
+				MetaClient visitor = visitors.remove(origin + "/" + m.key);
+				if (visitor != null)
+				{
+					((RemoteConnection) visitor.connection).detach();
+					visitor.room.removeUser(visitor);
+				}
+				else if (!origin.equals(self))
+					forward(origin, m);
+				break;
+			}
+
+			case DELIVER:
+			{
+				MetaClient user = service.getUser(m.key);
+				if (user != null && user.room instanceof RemoteRoom)
+				{
+					try
+					{
+						user.send(new Frame((Command<Client>) m.command));
+					}
+					catch (IOException e)
+					{
+						// the client's connection removes it
+					}
+				}
+				break;
+			}
+
+			case MOVE:
+			{
+				MetaClient user = service.getUser(m.key);
+				if (user == null)
+					break;
+
+				if (m.name != null)
+					service.createAndSwitch(user, m.name);
+				else if (!service.switchClientToRoom(user, m.room))
+					service.switchClientToRoom(user, ChattHypervisor.LOBBY);
+				break;
+			}
+
+			case CLOSE:
+			{
+				MetaClient user = service.getUser(m.key);
+				if (user != null)
+				{
+					user.connection.close();
+					service.logout(user);
+				}
+				break;
+			}
+
+			case ADOPT:
+				adopt(m);
+				break;
+
+			case CLAIM:
+				presence.claimed(from, m.key);
+				break;
+
+			case RELEASE:
+				presence.released(from, m.key);
+				break;
+
+			case PRESENCE:
+				presence.replaced(from, m.keys);
+				break;
+
+			case LEASE:
+				presence.renewed(from);
+				break;
+
+			case MIGRATED:
+				moved.put(m.room, m.node);
+				for (MetaClient user: service.currentUsers.values())
+				{
+					Room r = user.room;
+					if (r instanceof RemoteRoom && ((RemoteRoom) r).roomID == m.room && !m.node.equals(self))
+					{
+						user.directoryVersion = 0;
+						user.room = room(m.room);
+					}
+				}
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Passes a message for a room this node has handed over on to the node
+	 * that runs it now.
+	 * 
+	 * @param origin the node of the client the message is about
+	 * @return true if the message was passed on
+	 */
+	private boolean forward(String origin, ClusterMessage m)
+	{
+		String owner = moved.get(m.room);
+		if (owner == null || owner.equals(self) || service.rooms.containsKey(m.room))
+			return false;
+
+		m.node = origin;
+		if (peers.get(owner).send(m))
+			forwarded.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Takes over a room another node has handed to this one. Members that are
+	 * clients of this node become local members again; the rest are visitors.
+	 */
+	private void adopt(ClusterMessage m)
+	{
+		moved.put(m.room, self);
+
+		ChattRoom room = ChattRoom.adoptRoom(m.room, m.name, m.permanent, m.history);
+		service.rooms.put(room.roomID, room);
+		service.roomsChanged();
+
+		for (ClusterMessage.Member d: m.members)
+		{
+			MetaClient member;
+			if (d.node.equals(self))
+			{
+				member = service.getUser(d.key);
+				if (member == null)
+					continue;
+			}
+			else
+			{
+				Peer origin = peers.get(d.node);
+				if (origin == null)
+					continue;
+
+				member = new MetaClient(d.username, new RemoteConnection(this, origin, d.key, d.version));
+				MetaClient replaced = visitors.put(d.node + "/" + d.key, member);
+				if (replaced != null)
+				{
+					((RemoteConnection) replaced.connection).detach();
+					replaced.room.removeUser(replaced);
+				}
+			}
+
+			member.roomQuery = d.query;
+			room.adopt(member, d.active);
+		}
+
+		System.out.println(room + " took over \"" + m.name + "\" with " + m.members.size() + " members");
+	}
+
+	/**
+	 * Puts a client of another node into one of this node's rooms.
+	 */
+	private void visit(Peer from, ClusterMessage m)
+	{
+		Room room = service.rooms.get(m.room);
+		if (room == null)
+			room = service.archived.get(m.room);
+
+		// a client of this node has the name and keeps it; the other node
+		// disconnects its own, see Presence
+		if (service.getUser(m.key) != null && self.compareTo(from.name) < 0)
+			return;
+
+		MetaClient visitor = new MetaClient(m.username, new RemoteConnection(this, from, m.key, m.version));
+		if (room == null)
+		{
+			// gone before the client got here
+			((RemoteConnection) visitor.connection).move(ChattHypervisor.LOBBY, null);
+			return;
+		}
+
+		MetaClient replaced = visitors.put(from.name + "/" + m.key, visitor);
+		if (replaced != null)
+		{
+			((RemoteConnection) replaced.connection).detach();
+			replaced.room.removeUser(replaced);
+		}
+
+		room.addClient(visitor);
+	}
+
+	/**
+	 * Forgets a member connected to another node once it has left.
+	 */
+	void forget(RemoteConnection c)
+	{
+		visitors.computeIfPresent(c.origin.name + "/" + c.key, (k, v) -> v.connection == c ? null : v);
+	}
+
+	/**
+	 * Drops everything that depended on a node that can no longer be reached,
+	 * because its link stayed down for {@link Config#CLUSTER_LEASE} or it came
+	 * back as a new process: its clients' places in this node's rooms, its
+	 * rooms, and this node's clients in its rooms, who are disconnected so
+	 * they can reconnect.
+	 */
+	private void lost(Peer node)
+	{
+		System.err.println("lost node " + node.name);
+
+		for (MetaClient visitor: visitors.values())
+		{
+			RemoteConnection c = (RemoteConnection) visitor.connection;
+			if (c.origin == node)
+			{
+				c.detach();
+				visitor.room.removeUser(visitor);
+			}
+		}
+
+		if (remoteRooms.remove(node.name) != null)
+			service.roomsChanged();
+		presence.lost(node);
+
+		for (MetaClient user: service.currentUsers.values())
+		{
+			if (user.room instanceof RemoteRoom && ((RemoteRoom) user.room).owner == node)
+			{
+				user.connection.close();
+				service.logout(user);
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import server.RoomQuery;
+import shared.Message;
+import shared.RoomPackage;
+
+/**
+ * What nodes of a cluster send each other. Which fields are set depends on
+ * the kind.
+ *
+ * @author Peter Cortes
+ */
+public class ClusterMessage implements Serializable
+{
+	private static final long serialVersionUID = -7398542017326659180L;
+
+	public enum Kind
+	{
+		/**
+		 * rooms lists every room the sending node owns
+		 */
+		ROOMS,
+
+		/**
+		 * a client of the sending node, named by key and username, joins
+		 * room on the receiving node; version is the client's protocol version
+		 */
+		JOIN,
+
+		/**
+		 * as JOIN, creating the room first and calling it name
+		 */
+		CREATE,
+
+		/**
+		 * command was sent by client key, in room on the receiving node
+		 */
+		COMMAND,
+
+		/**
+		 * client key has left room on the receiving node
+		 */
+		LEAVE,
+
+		/**
+		 * command goes to client key of the receiving node
+		 */
+		DELIVER,
+
+		/**
+		 * client key of the receiving node is to switch to room, or to a new
+		 * room called name if name is set
+		 */
+		MOVE,
+
+		/**
+		 * client key of the receiving node is to be disconnected
+		 */
+		CLOSE,
+
+		/**
+		 * the receiving node takes over room, called name, from the sending
+		 * node, with members as they were there and history its last
+		 * messages
+		 */
+		ADOPT,
+
+		/**
+		 * room is now run by node
+		 */
+		MIGRATED,
+
+		/**
+		 * a client of the sending node took the name key
+		 */
+		CLAIM,
+
+		/**
+		 * a client of the sending node freed the name key
+		 */
+		RELEASE,
+
+		/**
+		 * keys are every name the sending node's clients have
+		 */
+		PRESENCE,
+
+		/**
+		 * the sending node is still there
+		 */
+		LEASE
+	}
+
+	/**
+	 * A member of a room being handed over
+	 */
+	public static class Member implements Serializable
+	{
+		private static final long serialVersionUID = 4120335377106455322L;
+
+		/**
+		 * the node the member is connected to
+		 */
+		public String node;
+		public String key;
+		public String username;
+		public int version;
+		public boolean active;
+		public RoomQuery query;
+	}
+
+	public final Kind kind;
+	public String node;
+	public int room;
+	public String key;
+	public String username;
+	public String name;
+	public int version;
+	public Object command;
+	public ArrayList<RoomPackage> rooms;
+	public boolean permanent;
+	public ArrayList<Member> members;
+	public ArrayList<String> keys;
+	public ArrayList<Message> history;
+
+	public ClusterMessage(Kind kind)
+	{
+		this.kind = kind;
+	}
+
+	@Override
+	public String toString()
+	{
+		return kind + " " + room + " " + (key == null ? "" : key);
+	}
+}
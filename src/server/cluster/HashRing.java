@@ -0,0 +1,56 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides which node owns each room. Every node is hashed onto a ring at many
+ * points, and a room belongs to the first node point at or after the room's
+ * own hash, so adding or removing a node only moves the rooms next to its
+ * points. Every node builds the same ring from the same list of names.
+ *
+ * @author Peter Cortes
+ */
+public final class HashRing
+{
+	private final TreeMap<Integer, String> points = new TreeMap<Integer, String>();
+
+	/**
+	 * @param nodes the names of every node
+	 * @param vnodes points per node
+	 */
+	public HashRing(Collection<String> nodes, int vnodes)
+	{
+		for (String node: nodes)
+			for (int i = 0; i < Math.max(1, vnodes); i++)
+				points.put(mix((node + "#" + i).hashCode()), node);
+	}
+
+	/**
+	 * @param roomID a room's id
+	 * @return the name of the node that owns the room
+	 */
+	public String owner(int roomID)
+	{
+		Map.Entry<Integer, String> e = points.ceilingEntry(mix(roomID));
+		return e != null ? e.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * Spreads nearby numbers far apart on the ring (the finalizer of
+	 * MurmurHash3).
+	 */
+	private static int mix(int h)
+	{
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import server.Config;
+import shared.Protocol;
+
+/**
+ * What both ends of a link between nodes agree on. A node opening a link is
+ * sent a random challenge and must answer it with an HMAC keyed by the
+ * secret every node of the cluster shares, read from
+ * {@link Config#CLUSTER_SECRET}; nothing it sends is deserialized until it
+ * has. Even then, only the classes nodes actually send each other are read.
+ *
+ * @author Peter Cortes
+ */
+final class Link
+{
+	/**
+	 * Bytes in a challenge
+	 */
+	static final int CHALLENGE = 16;
+
+	/**
+	 * Bytes in the answer to one
+	 */
+	static final int ANSWER = 32;
+
+	/**
+	 * Sent back once the answer is right
+	 */
+	static final int ACCEPTED = 1;
+
+	private static final String HMAC = "HmacSHA256";
+
+	/**
+	 * The classes outside this package and commands that a message can hold
+	 */
+	private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList("server.RoomQuery",
+			"server.RoomQuery$Kind", "shared.Message", "shared.RoomPackage", "java.lang.String", "java.lang.Enum",
+			"java.lang.Number", "java.lang.Integer", "java.lang.Long", "java.lang.Boolean", "java.util.ArrayList",
+			"java.util.LinkedList"));
+
+	private Link()
+	{}
+
+	/**
+	 * @return the cluster's secret
+	 * @throws IllegalArgumentException if it isn't set or can't be read
+	 */
+	static byte[] secret()
+	{
+		if (Config.CLUSTER_SECRET.isEmpty())
+			throw new IllegalArgumentException("chatt.cluster.secret must name the file holding the cluster's secret");
+
+		byte[] secret;
+		try
+		{
+			secret = Files.readAllBytes(Paths.get(Config.CLUSTER_SECRET));
+		}
+		catch (IOException e)
+		{
+			throw new IllegalArgumentException("can't read chatt.cluster.secret (" + e.getMessage() + ")");
+		}
+
+		if (secret.length < 16)
+			throw new IllegalArgumentException("the cluster's secret must be at least 16 bytes");
+		return secret;
+	}
+
+	/**
+	 * @param secret the cluster's secret
+	 * @param challenge what the node accepting the link sent
+	 * @param node the name of the node opening it
+	 * @param session the session it sends in
+	 * @return the answer only a node knowing the secret can give
+	 */
+	static byte[] answer(byte[] secret, byte[] challenge, String node, long session)
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(new SecretKeySpec(secret, HMAC));
+			mac.update(challenge);
+			mac.update(node.getBytes(StandardCharsets.UTF_8));
+			mac.update(ByteBuffer.allocate(8).putLong(session).array());
+			return mac.doFinal();
+		}
+		catch (GeneralSecurityException e)
+		{
+			// every JVM has HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A frame is the length of the message, its number, then the message.
+	 * 
+	 * @param number the message's number on its link
+	 * @param m the message
+	 * @return the frame
+	 */
+	static byte[] frame(long number, ClusterMessage m) throws IOException
+	{
+		byte[] payload = Protocol.serialize(m);
+		return ByteBuffer.allocate(12 + payload.length).putInt(payload.length).putLong(number).put(payload).array();
+	}
+
+	/**
+	 * @return the number of the message in a frame
+	 */
+	static long number(byte[] frame)
+	{
+		return ByteBuffer.wrap(frame).getLong(4);
+	}
+
+	/**
+	 * @param payload a serialized message
+	 * @param length how many bytes it spans
+	 * @return the message
+	 * @throws IOException if it isn't one, or holds a class nodes don't send
+	 */
+	static ClusterMessage decode(byte[] payload, int length) throws IOException
+	{
+		try (ObjectInputStream in = new Filtered(new ByteArrayInputStream(payload, 0, length)))
+		{
+			Object o = in.readObject();
+			if (!(o instanceof ClusterMessage))
+				throw new StreamCorruptedException("not a cluster message");
+
+			return (ClusterMessage) o;
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new StreamCorruptedException("unknown class " + e.getMessage());
+		}
+	}
+
+	private static boolean allowed(String name)
+	{
+		String message = ClusterMessage.class.getName();
+		return name.equals(message) || name.startsWith(message + "$") || name.startsWith("commands.")
+				|| ALLOWED.contains(name);
+	}
+
+	/**
+	 * Refuses any class not in the allow list before it is loaded
+	 */
+	private static final class Filtered extends ObjectInputStream
+	{
+		Filtered(InputStream in) throws IOException
+		{
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			if (!allowed(desc.getName()))
+				throw new InvalidClassException(desc.getName(), "not sent between nodes");
+
+			return super.resolveClass(desc);
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException
+		{
+			throw new InvalidClassException("proxy", "not sent between nodes");
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.Config;
+import shared.Protocol;
+
+/**
+ * The link this node sends on to one other node of the cluster. Messages are
+ * queued by whichever thread has them and written in order by the peer's own
+ * thread, which reconnects whenever the link drops. Each message is numbered
+ * and kept until the other node acknowledges it, so what was in flight when
+ * a link dropped is written again over the next one. Messages come back over
+ * the link the other node opens to this one.
+ *
+ * @author Peter Cortes
+ */
+public final class Peer implements Runnable
+{
+	/**
+	 * Most messages written before a flush
+	 */
+	private static final int BATCH = 256;
+
+	private static final long RETRY = 1000;
+
+	public final String name;
+	final InetSocketAddress address;
+	private final String self;
+	private final byte[] secret;
+
+	/**
+	 * This node's address, which links are made from so that the other node
+	 * can tell where they come from
+	 */
+	private final InetSocketAddress local;
+
+	private final LinkedBlockingQueue<ClusterMessage> queue = new LinkedBlockingQueue<ClusterMessage>(
+			Config.CLUSTER_QUEUE);
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong resent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Identifies this process to the other node, which numbers messages
+	 * afresh for each one
+	 */
+	private final long session = new SecureRandom().nextLong();
+
+	/**
+	 * Frames written but not yet acknowledged, oldest first, and the number
+	 * the next frame gets. Only used from the peer's thread.
+	 */
+	private final ArrayDeque<byte[]> unacked = new ArrayDeque<byte[]>();
+	private long next = 1;
+
+	/**
+	 * The session of the process at the other end and the number of the last
+	 * message read from it, so that messages written again after a reconnect
+	 * are only handled once. Only used by the links reading from the other
+	 * node, holding the peer's lock.
+	 */
+	long heardSession;
+	long heard;
+
+	/**
+	 * Links reading from the other node, and whether it has been given up on
+	 * since it last had one; guarded as above
+	 */
+	int links;
+	boolean gone = true;
+
+	private volatile boolean connected = false;
+
+	/**
+	 * Set whenever the link is (re)made, so the other node is sent this
+	 * node's rooms again
+	 */
+	volatile boolean stale = true;
+
+	Peer(String self, InetSocketAddress local, byte[] secret, String name, InetSocketAddress address)
+	{
+		this.self = self;
+		this.local = local;
+		this.secret = secret;
+		this.name = name;
+		this.address = address;
+	}
+
+	void start()
+	{
+		Thread t = new Thread(this, "chatt-peer-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Queues a message for the other node.
+	 * 
+	 * @param message the message to send
+	 * @return false if too many messages are already waiting
+	 */
+	boolean send(ClusterMessage message)
+	{
+		return queue.offer(message);
+	}
+
+	public boolean isConnected()
+	{
+		return connected;
+	}
+
+	/**
+	 * @return messages written to the other node
+	 */
+	public long sent()
+	{
+		return sent.get();
+	}
+
+	/**
+	 * @return messages written again after the link was remade
+	 */
+	public long resent()
+	{
+		return resent.get();
+	}
+
+	/**
+	 * @return messages given up on because too many were unacknowledged
+	 */
+	public long dropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return messages waiting to be written
+	 */
+	public int depth()
+	{
+		return queue.size();
+	}
+
+	public void run()
+	{
+		ArrayList<ClusterMessage> batch = new ArrayList<ClusterMessage>(BATCH);
+		while (true)
+		{
+			try (Socket socket = new Socket())
+			{
+				socket.bind(new InetSocketAddress(local.getAddress(), 0));
+				socket.connect(address);
+				socket.setTcpNoDelay(true);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+				// named without serialization, so the other node can turn away
+				// strangers before deserializing anything they send, then
+				// proving this node knows the cluster's secret
+				socket.setSoTimeout(Config.CLUSTER_LEASE);
+				out.writeInt(Protocol.MAGIC);
+				out.writeUTF(self);
+				out.writeLong(session);
+				out.flush();
+
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				byte[] challenge = new byte[Link.CHALLENGE];
+				in.readFully(challenge);
+				out.write(Link.answer(secret, challenge, self, session));
+				out.flush();
+				if (in.readByte() != Link.ACCEPTED)
+					throw new StreamCorruptedException("node " + name + " refused the link");
+				socket.setSoTimeout(0);
+
+				connected = true;
+				stale = true;
+				System.out.println("linked to node " + name + " at " + address);
+
+				// whatever the last link didn't have acknowledged goes first;
+				// the other node skips any of it that did arrive
+				for (byte[] frame: unacked)
+					out.write(frame);
+				out.flush();
+				resent.addAndGet(unacked.size());
+
+				while (true)
+				{
+					batch.add(queue.take());
+					queue.drainTo(batch, BATCH - 1);
+					for (ClusterMessage m: batch)
+					{
+						byte[] frame = Link.frame(next++, m);
+						unacked.add(frame);
+						out.write(frame);
+					}
+					out.flush();
+
+					sent.addAndGet(batch.size());
+					batch.clear();
+
+					while (in.available() >= 8)
+						acknowledged(in.readLong());
+					while (unacked.size() > Config.CLUSTER_QUEUE)
+					{
+						unacked.poll();
+						dropped.incrementAndGet();
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				if (connected)
+					System.err.println("link to node " + name + " lost (" + e.getMessage() + ")");
+
+				// what was written stays unacknowledged and is sent again
+				batch.clear();
+				connected = false;
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			try
+			{
+				TimeUnit.MILLISECONDS.sleep(RETRY);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the frames the other node says it has read.
+	 * 
+	 * @param number the last of them
+	 */
+	private void acknowledged(long number)
+	{
+		while (!unacked.isEmpty() && Link.number(unacked.peek()) <= number)
+			unacked.poll();
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + "@" + address.getHostString() + ":" + address.getPort();
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import commands.serversent.MessagePackageCommand;
+import server.Config;
+import server.MetaClient;
+import shared.Message;
+
+/**
+ * Which names are taken on the other nodes of the cluster, so a login can be
+ * checked here without asking them. Every node tells the others as soon as
+ * one of its clients takes or frees a name, and sends its whole list whenever
+ * a link is (re)made. A node's names only count while its lease lasts; the
+ * lease is renewed with every sync, so names of a node that stops talking
+ * free themselves after {@link Config#CLUSTER_LEASE}.
+ * <p>
+ * Two nodes can let the same name in at once, before either hears of the
+ * other. When that happens the node whose name sorts first keeps its client
+ * and the other disconnects its own.
+ *
+ * @author Peter Cortes
+ */
+public final class Presence
+{
+	private final Cluster cluster;
+
+	/**
+	 * The node each name taken elsewhere was taken on, by key
+	 */
+	private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * When each other node's names stop counting unless renewed, in
+	 * milliseconds
+	 */
+	private final ConcurrentHashMap<String, Long> leases = new ConcurrentHashMap<String, Long>();
+
+	private final AtomicLong conflicts = new AtomicLong();
+
+	Presence(Cluster cluster)
+	{
+		this.cluster = cluster;
+	}
+
+	/**
+	 * @param key a client's key
+	 * @return true if a client of another node has the name
+	 */
+	public boolean takenElsewhere(String key)
+	{
+		String node = names.get(key);
+		if (node == null)
+			return false;
+
+		Long until = leases.get(node);
+		return until != null && until > System.currentTimeMillis();
+	}
+
+	/**
+	 * Tells the other nodes a client of this node took a name.
+	 */
+	public void claim(String key)
+	{
+		tell(ClusterMessage.Kind.CLAIM, key);
+	}
+
+	/**
+	 * Tells the other nodes a client of this node freed its name.
+	 */
+	public void release(String key)
+	{
+		tell(ClusterMessage.Kind.RELEASE, key);
+	}
+
+	private void tell(ClusterMessage.Kind kind, String key)
+	{
+		for (Peer p: cluster.peers.values())
+		{
+			ClusterMessage m = new ClusterMessage(kind);
+			m.key = key;
+
+			// the whole list goes with the next sync instead
+			if (!p.send(m))
+				p.stale = true;
+		}
+	}
+
+	/**
+	 * @return every name this node's clients have, for a node that (re)made
+	 *         its link
+	 */
+	ClusterMessage all()
+	{
+		ClusterMessage m = new ClusterMessage(ClusterMessage.Kind.PRESENCE);
+		m.keys = new ArrayList<String>(cluster.service.currentUsers.keySet());
+		return m;
+	}
+
+	/**
+	 * Another node's client took a name. If a client of this node has it too,
+	 * the node that sorts first keeps it.
+	 */
+	void claimed(Peer from, String key)
+	{
+		renewed(from);
+
+		MetaClient local = cluster.service.getUser(key);
+		if (local != null && cluster.self.compareTo(from.name) < 0)
+		{
+			// the other node disconnects its own when it hears of ours
+			conflicts.incrementAndGet();
+			return;
+		}
+
+		names.put(key, from.name);
+		if (local != null)
+		{
+			conflicts.incrementAndGet();
+			evict(local);
+		}
+	}
+
+	/**
+	 * Another node's client freed its name.
+	 */
+	void released(Peer from, String key)
+	{
+		renewed(from);
+		names.remove(key, from.name);
+	}
+
+	/**
+	 * Another node sent every name its clients have, replacing what it sent
+	 * before.
+	 */
+	void replaced(Peer from, ArrayList<String> keys)
+	{
+		HashSet<String> current = new HashSet<String>(keys);
+		names.entrySet().removeIf(e -> e.getValue().equals(from.name) && !current.contains(e.getKey()));
+
+		for (String key: keys)
+			claimed(from, key);
+	}
+
+	/**
+	 * Another node is still there; its names count for another
+	 * {@link Config#CLUSTER_LEASE}.
+	 */
+	void renewed(Peer from)
+	{
+		leases.put(from.name, System.currentTimeMillis() + Config.CLUSTER_LEASE);
+	}
+
+	/**
+	 * Frees every name of a node that can no longer be reached.
+	 */
+	void lost(Peer node)
+	{
+		leases.remove(node.name);
+		names.values().removeIf(node.name::equals);
+	}
+
+	private void evict(MetaClient user)
+	{
+		try
+		{
+			user.send(new MessagePackageCommand(new Message("the name " + user.username
+					+ " was taken on another server at the same time")));
+		}
+		catch (IOException e)
+		{
+			// closing anyway
+		}
+
+		user.connection.close();
+		if (user.room != null)
+			user.room.removeUser(user);
+		else
+			cluster.service.logout(user);
+		System.out.println("gave up \"" + user.username + "\" to another node");
+	}
+
+	/**
+	 * @return names taken on other nodes
+	 */
+	public int size()
+	{
+		return names.size();
+	}
+
+	/**
+	 * @return names two nodes let in at once
+	 */
+	public long conflicts()
+	{
+		return conflicts.get();
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.IOException;
+
+import server.net.Connection;
+import server.net.Frame;
+import server.net.OutboundQueue;
+
+/**
+ * How a room on this node reaches a member that is connected to another node:
+ * whatever the room sends is forwarded to that node, which writes it to the
+ * client. The client's outbound queue is kept there, so there is none here.
+ *
+ * @author Peter Cortes
+ */
+public final class RemoteConnection implements Connection
+{
+	private static final OutboundQueue NONE = new OutboundQueue(1);
+
+	private final Cluster cluster;
+
+	/**
+	 * The node the client is connected to
+	 */
+	final Peer origin;
+	final String key;
+	private final int version;
+	private volatile boolean open = true;
+
+	RemoteConnection(Cluster cluster, Peer origin, String key, int version)
+	{
+		this.cluster = cluster;
+		this.origin = origin;
+		this.key = key;
+		this.version = version;
+	}
+
+	@Override
+	public void send(Frame frame) throws IOException
+	{
+		if (!open)
+			throw new IOException("client has left this node");
+
+		ClusterMessage m = new ClusterMessage(ClusterMessage.Kind.DELIVER);
+		m.key = key;
+		m.command = frame.command;
+		if (!origin.send(m))
+			throw new IOException("node " + origin.name + " is too far behind");
+	}
+
+	/**
+	 * Disconnects the client at the node it is connected to.
+	 */
+	@Override
+	public void close()
+	{
+		if (!open)
+			return;
+
+		ClusterMessage m = new ClusterMessage(ClusterMessage.Kind.CLOSE);
+		m.key = key;
+		origin.send(m);
+		detach();
+	}
+
+	/**
+	 * Has the client's own node move it to another room.
+	 * 
+	 * @param room the room to move to, ignored if name is set
+	 * @param name the name of a room to create and move to, or null
+	 */
+	public void move(int room, String name)
+	{
+		ClusterMessage m = new ClusterMessage(ClusterMessage.Kind.MOVE);
+		m.key = key;
+		m.room = room;
+		m.name = name;
+		origin.send(m);
+		detach();
+	}
+
+	/**
+	 * Stops sending to the client through this connection, which is no longer
+	 * the client's way into this node.
+	 */
+	void detach()
+	{
+		open = false;
+		cluster.forget(this);
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * The link carries every client of the other node, so it isn't paused for
+	 * one of them.
+	 */
+	@Override
+	public void pauseReads(boolean paused)
+	{}
+
+	@Override
+	public int version()
+	{
+		return version;
+	}
+
+	@Override
+	public OutboundQueue outbound()
+	{
+		return NONE;
+	}
+
+	@Override
+	public long retained()
+	{
+		return 0;
+	}
+}
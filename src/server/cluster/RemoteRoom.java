@@ -0,0 +1,141 @@
+/**
+ * 
+ */
+package server.cluster;
+
+import java.io.IOException;
+
+import commands.Command;
+import commands.serversent.MessagePackageCommand;
+import server.MetaClient;
+import server.Room;
+import server.Server;
+import shared.Message;
+
+/**
+ * A room owned by another node, as seen by a client connected to this one.
+ * Everything the client does in the room is forwarded to the owner, which
+ * runs the room and sends back what the client should see.
+ *
+ * @author Peter Cortes
+ */
+public final class RemoteRoom implements Room
+{
+	private final Cluster cluster;
+	public final Peer owner;
+	public final int roomID;
+
+	RemoteRoom(Cluster cluster, Peer owner, int roomID)
+	{
+		this.cluster = cluster;
+		this.owner = owner;
+		this.roomID = roomID;
+	}
+
+	@Override
+	public void addClient(MetaClient m)
+	{
+		join(m, ClusterMessage.Kind.JOIN, null);
+	}
+
+	/**
+	 * Moves a client into a new room the owner creates for it.
+	 * 
+	 * @param m the client joining
+	 * @param name the new room's name
+	 */
+	public void create(MetaClient m, String name)
+	{
+		join(m, ClusterMessage.Kind.CREATE, name);
+	}
+
+	private void join(MetaClient m, ClusterMessage.Kind kind, String name)
+	{
+		// the owner keeps its own directory versions
+		m.directoryVersion = 0;
+		m.room = this;
+
+		ClusterMessage j = new ClusterMessage(kind);
+		j.room = roomID;
+		j.key = m.key;
+		j.username = m.username;
+		j.version = m.connection.version();
+		j.name = name;
+		if (!owner.send(j))
+			unreachable(m);
+	}
+
+	@Override
+	public void submit(MetaClient user, Command<Server> command)
+	{
+		user.lastSeen = System.currentTimeMillis();
+
+		ClusterMessage c = new ClusterMessage(ClusterMessage.Kind.COMMAND);
+		c.room = roomID;
+		c.key = user.key;
+		c.node = origin(user);
+		c.command = command;
+		if (!owner.send(c))
+			unreachable(user);
+	}
+
+	@Override
+	public void removeUser(MetaClient user)
+	{
+		ClusterMessage l = new ClusterMessage(ClusterMessage.Kind.LEAVE);
+		l.room = roomID;
+		l.key = user.key;
+		l.node = origin(user);
+		owner.send(l);
+
+		cluster.service.logout(user);
+	}
+
+	@Override
+	public void timeOut(MetaClient user)
+	{
+		if (user.room != this)
+		{
+			user.room.timeOut(user);
+			return;
+		}
+
+		try
+		{
+			user.send(new MessagePackageCommand(new Message("disconnected for being idle")));
+		}
+		catch (IOException e)
+		{
+			// closing anyway
+		}
+
+		user.connection.close();
+		removeUser(user);
+		System.out.println(this + " timed out \"" + user.username + "\"");
+	}
+
+	/**
+	 * @return the node of a client of another node passed on from a room
+	 *         handed over by this one, or null for a client of this node
+	 */
+	private static String origin(MetaClient user)
+	{
+		return user.connection instanceof RemoteConnection ? ((RemoteConnection) user.connection).origin.name : null;
+	}
+
+	/**
+	 * Disconnects a client whose room can't be reached.
+	 */
+	void unreachable(MetaClient user)
+	{
+		System.err.println(this + " can't reach node " + owner.name + " for " + user);
+		user.connection.close();
+		cluster.service.logout(user);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("RR%04d@%s", roomID, owner.name);
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * 
+ */
+package server.journal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in power-of-two buckets, cheaply enough to record one per
+ * message, and describes them by percentile. Percentiles are the upper bound
+ * of the bucket they fall in, so they are within a factor of two, but never
+ * more than the largest value seen.
+ *
+ * @author Peter Cortes
+ */
+final class Histogram
+{
+	/**
+	 * Bucket i counts values below 2^i and at least 2^(i-1)
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long value)
+	{
+		value = Math.max(0, value);
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	/**
+	 * Describes the values since the last call and starts counting afresh.
+	 */
+	String drain()
+	{
+		long[] counts = new long[buckets.length()];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = buckets.getAndSet(i, 0);
+
+		long n = count.getAndSet(0);
+		long sum = total.getAndSet(0);
+		long top = max.getAndSet(0);
+		if (n == 0)
+			return "none";
+
+		return String.format("mean %.1f, p50 %d, p99 %d, p99.9 %d, max %d", (double) sum / n,
+				percentile(counts, n, 0.5, top), percentile(counts, n, 0.99, top), percentile(counts, n, 0.999, top), top);
+	}
+
+	private static long percentile(long[] counts, long n, double p, long max)
+	{
+		long rank = (long) Math.ceil(n * p);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+				return i == 0 ? 0 : Math.min(1L << i, max);
+		}
+
+		return max;
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * 
+ */
+package server.journal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+import server.Config;
+import shared.Message;
+
+/**
+ * The messages sent in one room, kept on disk under
+ * {@link Config#JOURNAL_DIR} in a directory named for the room's id. The
+ * journal is a series of {@link Segment}s, each starting where the last one
+ * filled up; only the newest {@link Config#JOURNAL_SEGMENTS} are kept.
+ * Messages are numbered from 1 in the order they were sent.
+ * <p>
+ * The room only queues its messages; a {@link JournalWriter} numbers and
+ * writes them, so a slow disk never holds up a broadcast. Only the newest
+ * segment keeps its files open; the others are read through mappings that
+ * outlast them. Reads can come from any thread.
+ *
+ * @author Peter Cortes
+ */
+public final class Journal
+{
+	private final JournalWriter writer;
+	private final File dir;
+
+	/**
+	 * Set for a room that is new, so that anything left by an earlier room
+	 * with the same id is thrown away
+	 */
+	private boolean fresh;
+
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	private boolean open;
+
+	/**
+	 * The segment being written and the number of the next message. Only used
+	 * from the writer thread.
+	 */
+	private Segment active;
+	private long next;
+
+	/**
+	 * @param writer the thread that writes the journal
+	 * @param roomID the room whose messages it keeps
+	 * @param fresh true for a room that was just created
+	 */
+	public Journal(JournalWriter writer, int roomID, boolean fresh)
+	{
+		this.writer = writer;
+		this.dir = new File(Config.JOURNAL_DIR, Integer.toString(roomID));
+		this.fresh = fresh;
+	}
+
+	/**
+	 * Queues a message to be written.
+	 */
+	public void append(Message m)
+	{
+		long queued = System.nanoTime();
+		writer.submit(this, () -> write(m, queued));
+	}
+
+	private void write(Message m, long queued) throws IOException
+	{
+		open();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		m.write(new DataOutputStream(bytes));
+		byte[] payload = bytes.toByteArray();
+		if (Segment.HEADER + payload.length > Config.JOURNAL_SEGMENT)
+			throw new IOException("a message of " + payload.length + " bytes doesn't fit in a segment");
+
+		if (active == null || !active.append(next, payload))
+		{
+			roll();
+			active.append(next, payload);
+		}
+		next++;
+		writer.written(active, payload.length + Segment.HEADER, queued);
+	}
+
+	/**
+	 * Starts a new segment after the full one, or the first, dropping the
+	 * oldest if there are too many.
+	 */
+	private void roll() throws IOException
+	{
+		if (active != null)
+			active.seal();
+		else if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can't create " + dir);
+
+		active = new Segment(dir, next, Config.JOURNAL_SEGMENT);
+		segments.put(active.base, active);
+
+		while (segments.size() > Math.max(1, Config.JOURNAL_SEGMENTS))
+			segments.pollFirstEntry().getValue().delete();
+	}
+
+	/**
+	 * Opens the segments on disk, if that hasn't been done since the journal
+	 * was last closed.
+	 */
+	private synchronized void open() throws IOException
+	{
+		if (open)
+			return;
+
+		if (fresh)
+		{
+			deleteFiles();
+			fresh = false;
+		}
+
+		// a room's first segment is only made once it has a message
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+		try
+		{
+			for (File f: files == null ? new File[0] : files)
+			{
+				long base = Long.parseLong(f.getName().substring(0, f.getName().length() - 4));
+				segments.put(base, new Segment(dir, base, Config.JOURNAL_SEGMENT));
+			}
+		}
+		catch (IOException e)
+		{
+			// leave nothing open for the next try
+			for (Segment s: segments.values())
+				s.close();
+			segments.clear();
+			throw e;
+		}
+
+		if (segments.isEmpty())
+		{
+			active = null;
+			next = 1;
+			open = true;
+			return;
+		}
+
+		active = segments.lastEntry().getValue();
+		for (Segment s: segments.headMap(active.base).values())
+			s.seal();
+		next = active.last() + 1;
+		open = true;
+	}
+
+	/**
+	 * Reads the last messages written on the writer thread, once everything
+	 * queued before has been written.
+	 * 
+	 * @param count the most messages wanted
+	 * @param then given the messages, oldest first, on the writer thread; or
+	 *            none, on any thread, if they can't be read
+	 */
+	public void tail(int count, Consumer<List<Message>> then)
+	{
+		writer.submit(this, () -> then.accept(tail(count)), () -> then.accept(new ArrayList<Message>()));
+	}
+
+	/**
+	 * @param count the most messages wanted
+	 * @return the last messages written, oldest first
+	 */
+	private List<Message> tail(int count) throws IOException
+	{
+		if (!writer.running())
+			return new ArrayList<Message>();
+
+		open();
+
+		Map.Entry<Long, Segment> first = segments.firstEntry();
+		Map.Entry<Long, Segment> last = segments.lastEntry();
+		if (first == null || last == null)
+			return new ArrayList<Message>();
+
+		return read(Math.max(first.getKey(), last.getValue().last() - count + 1), count);
+	}
+
+	/**
+	 * @param from the number of the first message wanted
+	 * @param max the most messages wanted
+	 * @return messages from that one on that are still kept, oldest first;
+	 *         none while another process may still be writing the journal
+	 */
+	public List<Message> read(long from, int max) throws IOException
+	{
+		if (!writer.running())
+			return new ArrayList<Message>();
+
+		open();
+
+		List<Message> out = new ArrayList<Message>(Math.min(max, 256));
+		Long start = segments.floorKey(from);
+		for (Segment s: segments.tailMap(start == null ? from : start).values())
+		{
+			if (out.size() >= max)
+				break;
+
+			s.read(from, max, out);
+		}
+		return out;
+	}
+
+	/**
+	 * Closes the journal's files once everything queued has been written.
+	 * They are opened again if the room is used again.
+	 */
+	public void close()
+	{
+		writer.submit(this, this::closeFiles);
+	}
+
+	/**
+	 * Deletes the journal once everything queued has been written, for a
+	 * room that is gone for good.
+	 */
+	public void delete()
+	{
+		writer.submit(this, () ->
+		{
+			closeFiles();
+			deleteFiles();
+			dir.delete();
+		});
+	}
+
+	private synchronized void closeFiles() throws IOException
+	{
+		writer.commit();
+		for (Segment s: segments.values())
+			s.close();
+
+		segments.clear();
+		active = null;
+		open = false;
+	}
+
+	private void deleteFiles()
+	{
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f: files)
+				f.delete();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "journal " + dir;
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ * 
+ */
+package server.journal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.Config;
+
+/**
+ * The one thread that writes every room's {@link Journal}. Rooms hand it
+ * work without waiting; if it falls {@link Config#JOURNAL_QUEUE} tasks behind,
+ * further messages are left out of the journals rather than slowing the rooms
+ * down.
+ * <p>
+ * Writes are committed in groups: everything written from every room since
+ * the last commit is forced to the disk together, one force per segment
+ * touched, as often as {@link Config#JOURNAL_SYNC} says. While the disk is
+ * busy with one commit the next group builds up on the queue, so the more
+ * messages arrive the more each commit carries. How long messages wait to be
+ * committed, and how many go in each commit, are kept as histograms.
+ *
+ * @author Peter Cortes
+ */
+public final class JournalWriter implements Runnable
+{
+	/**
+	 * Most tasks taken off the queue at once
+	 */
+	private static final int BATCH = 1024;
+
+	/**
+	 * Work on a journal, which may fail
+	 */
+	interface Task
+	{
+		void run() throws IOException;
+	}
+
+	private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(Config.JOURNAL_QUEUE);
+
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+
+	/**
+	 * Journals are only touched between start and stop, so that a process
+	 * replacing this one never writes them at the same time, see
+	 * {@link server.Handoff}
+	 */
+	private volatile boolean started;
+	private volatile boolean stopped;
+
+	/**
+	 * Segments written since the last commit, and when each record written
+	 * since was queued. Only used from the writer thread.
+	 */
+	private final HashSet<Segment> dirty = new HashSet<Segment>();
+	private long[] queuedAt = new long[BATCH];
+	private int uncommitted;
+	private long lastCommit = System.nanoTime();
+
+	/**
+	 * Microseconds from a message being queued to it being committed, and
+	 * records per commit
+	 */
+	private final Histogram latency = new Histogram();
+	private final Histogram groups = new Histogram();
+
+	public void start()
+	{
+		started = true;
+		Thread t = new Thread(this, "chatt-journal");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Queues work on a journal.
+	 */
+	void submit(Journal journal, Task task)
+	{
+		submit(journal, task, null);
+	}
+
+	/**
+	 * Queues work on a journal.
+	 * 
+	 * @param skipped run instead if the work is dropped or fails, or null
+	 */
+	void submit(Journal journal, Task task, Runnable skipped)
+	{
+		Runnable r = () ->
+		{
+			if (stopped)
+			{
+				dropped.incrementAndGet();
+				if (skipped != null)
+					skipped.run();
+				return;
+			}
+
+			try
+			{
+				task.run();
+			}
+			catch (IOException e)
+			{
+				if (failed.getAndIncrement() == 0)
+					System.err.println(journal + " failed (" + e.getMessage() + ")");
+				if (skipped != null)
+					skipped.run();
+			}
+		};
+
+		if (!queue.offer(r))
+		{
+			dropped.incrementAndGet();
+			if (skipped != null)
+				skipped.run();
+		}
+	}
+
+	/**
+	 * Writes and commits everything already queued, then leaves the journals
+	 * alone, for a process handing its rooms to another.
+	 */
+	public void stop()
+	{
+		CountDownLatch done = new CountDownLatch(1);
+		if (started && queue.offer(() ->
+		{
+			commit();
+			stopped = true;
+			done.countDown();
+		}))
+		{
+			try
+			{
+				done.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		stopped = true;
+	}
+
+	/**
+	 * @return true if journals can be read and written
+	 */
+	boolean running()
+	{
+		return started && !stopped;
+	}
+
+	/**
+	 * Counts a record written, to be committed with the rest of its group.
+	 * Only called from the writer thread.
+	 * 
+	 * @param segment where it was written
+	 * @param size its size in bytes
+	 * @param queued when it was queued, in {@link System#nanoTime()}
+	 */
+	void written(Segment segment, int size, long queued)
+	{
+		records.incrementAndGet();
+		bytes.addAndGet(size);
+
+		dirty.add(segment);
+		if (uncommitted == queuedAt.length)
+			queuedAt = Arrays.copyOf(queuedAt, uncommitted * 2);
+		queuedAt[uncommitted++] = queued;
+	}
+
+	/**
+	 * Forces everything written since the last commit out to the disk, unless
+	 * {@link Config#JOURNAL_SYNC} is none. Only called from the writer thread.
+	 */
+	void commit()
+	{
+		if (uncommitted == 0)
+			return;
+
+		if (Config.JOURNAL_SYNC != Config.Durability.NONE)
+		{
+			for (Segment s: dirty)
+			{
+				try
+				{
+					s.force();
+				}
+				catch (IOException e)
+				{
+					if (failed.getAndIncrement() == 0)
+						System.err.println("journal commit failed (" + e.getMessage() + ")");
+				}
+			}
+		}
+
+		long now = System.nanoTime();
+		for (int i = 0; i < uncommitted; i++)
+			latency.record((now - queuedAt[i]) / 1000);
+		groups.record(uncommitted);
+		commits.incrementAndGet();
+
+		dirty.clear();
+		uncommitted = 0;
+		lastCommit = now;
+	}
+
+	/**
+	 * @return nanoseconds until the records written so far are due to be
+	 *         committed, or 0 if they are
+	 */
+	private long untilCommit()
+	{
+		if (Config.JOURNAL_SYNC != Config.Durability.INTERVAL)
+			return 0;
+
+		return Math.max(0, lastCommit + TimeUnit.MILLISECONDS.toNanos(Config.JOURNAL_SYNC_INTERVAL) - System.nanoTime());
+	}
+
+	@Override
+	public void run()
+	{
+		ArrayList<Runnable> batch = new ArrayList<Runnable>(BATCH);
+		while (true)
+		{
+			try
+			{
+				// wake up for a commit that comes due while nothing arrives
+				Runnable first = uncommitted == 0 ? queue.take() : queue.poll(untilCommit(), TimeUnit.NANOSECONDS);
+				if (first != null)
+					batch.add(first);
+			}
+			catch (InterruptedException e)
+			{
+				commit();
+				return;
+			}
+
+			queue.drainTo(batch, BATCH - batch.size());
+			for (Runnable r: batch)
+				r.run();
+			batch.clear();
+
+			if (untilCommit() == 0)
+				commit();
+		}
+	}
+
+	/**
+	 * Describes the writes, and the commits since the last report.
+	 */
+	public String report()
+	{
+		return String.format("%s%n    %d commits (%s), latency us %s%n    records per commit %s", this,
+				commits.getAndSet(0), Config.JOURNAL_SYNC.toString().toLowerCase().replace('_', '-'),
+				latency.drain(), groups.drain());
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d records, %.1f MB written, %d waiting, %d dropped, %d failed", records.get(),
+				bytes.get() / 1048576.0, queue.size(), dropped.get(), failed.get());
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * 
+ */
+package server.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import server.Config;
+import shared.Message;
+
+/**
+ * One file of a room's {@link Journal}, holding the messages from a base
+ * sequence number on. Segments start small and double as they fill, up to
+ * {@link Config#JOURNAL_SEGMENT}, so a quiet room's journal stays small. They
+ * hold records:
+ *
+ * <pre>
+ * int length, int crc32 of the payload, long sequence, payload
+ * </pre>
+ *
+ * where the payload is a {@link Message} as the binary protocol writes it.
+ * Every {@link Config#JOURNAL_INDEX} bytes the sequence and position of
+ * a record are added to a sparse index, kept in memory and in a file beside
+ * the segment, so a read only scans from the nearest entry before it. Reads
+ * go through a read-only mapping of the whole segment; only the writer thread
+ * writes.
+ *
+ * @author Peter Cortes
+ */
+final class Segment
+{
+	static final int HEADER = 16;
+
+	/**
+	 * Bytes per sparse index entry: a sequence and a position
+	 */
+	private static final int ENTRY = 12;
+
+	/**
+	 * The size a new segment file is created at
+	 */
+	private static final int INITIAL = 64 * 1024;
+
+	/**
+	 * The sequence number of the first record
+	 */
+	final long base;
+
+	final File file;
+	private final File indexFile;
+	private final FileChannel channel;
+	private FileChannel indexChannel;
+
+	/**
+	 * The most the segment can grow to
+	 */
+	private final int limit;
+
+	/**
+	 * A mapping of the whole file, replaced when the file grows. Earlier
+	 * mappings stay valid, as the file never shrinks.
+	 */
+	private volatile MappedByteBuffer map;
+
+	/**
+	 * Bytes of whole records, and the sequence number of the last of them.
+	 * Written by the writer thread only, after the record is.
+	 */
+	private volatile int size;
+	private volatile long last;
+
+	/**
+	 * The sparse index. The arrays are replaced before entries grows, so a
+	 * reader that sees the count sees arrays that long.
+	 */
+	private long[] sequences = new long[16];
+	private int[] positions = new int[16];
+	private volatile int entries;
+
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER);
+	private final ByteBuffer indexEntry = ByteBuffer.allocate(ENTRY);
+
+	/**
+	 * Opens a segment file, creating it if it doesn't exist, and finds where
+	 * its records end.
+	 * 
+	 * @param dir the room's journal directory
+	 * @param base the sequence number of the first record
+	 * @param limit the size the segment can grow to
+	 */
+	Segment(File dir, long base, int limit) throws IOException
+	{
+		this.base = base;
+		this.file = new File(dir, String.format("%020d.log", base));
+		this.indexFile = new File(dir, String.format("%020d.idx", base));
+
+		try (RandomAccessFile f = new RandomAccessFile(file, "rw"))
+		{
+			if (f.length() == 0)
+				f.setLength(Math.min(limit, INITIAL));
+		}
+
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try
+		{
+			int length = (int) channel.size();
+			this.limit = Math.max(limit, length);
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			loadIndex();
+			recover();
+			indexChannel.truncate((long) entries * ENTRY);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the index file, ignoring anything after the last whole entry or an
+	 * entry that doesn't follow the one before it.
+	 */
+	private void loadIndex() throws IOException
+	{
+		try (RandomAccessFile f = new RandomAccessFile(indexFile, "rw"))
+		{
+			byte[] bytes = new byte[(int) (f.length() / ENTRY * ENTRY)];
+			f.readFully(bytes);
+
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			long previous = base - 1;
+			int at = -1;
+			while (in.hasRemaining())
+			{
+				long sequence = in.getLong();
+				int position = in.getInt();
+				if (sequence <= previous || position <= at || position >= map.capacity())
+					break;
+
+				addEntry(sequence, position);
+				previous = sequence;
+				at = position;
+			}
+		}
+
+		indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+	}
+
+	/**
+	 * Finds the end of the records by scanning on from the last index entry,
+	 * stopping at the first record that isn't whole.
+	 */
+	private void recover()
+	{
+		ByteBuffer view = map.duplicate();
+
+		// only the segment itself is forced to the disk, so its index can be
+		// ahead of it
+		while (entries > 0 && check(view, positions[entries - 1], sequences[entries - 1]) < 0)
+			entries--;
+
+		int position = entries == 0 ? 0 : positions[entries - 1];
+		long sequence = entries == 0 ? base : sequences[entries - 1];
+
+		int length;
+		while ((length = check(view, position, sequence)) >= 0)
+		{
+			position += HEADER + length;
+			sequence++;
+		}
+
+		size = position;
+		last = sequence - 1;
+	}
+
+	/**
+	 * @return the payload length of the record at position if it is whole
+	 *         and has the sequence expected, or -1
+	 */
+	private int check(ByteBuffer view, int position, long sequence)
+	{
+		if (position + HEADER > view.capacity())
+			return -1;
+
+		int length = view.getInt(position);
+		if (length <= 0 || length > view.capacity() - position - HEADER || view.getLong(position + 8) != sequence)
+			return -1;
+
+		byte[] payload = new byte[length];
+		ByteBuffer p = view.duplicate();
+		p.position(position + HEADER);
+		p.get(payload);
+
+		CRC32 c = new CRC32();
+		c.update(payload);
+		return (int) c.getValue() == view.getInt(position + 4) ? length : -1;
+	}
+
+	/**
+	 * Writes a record. Only called from the writer thread.
+	 * 
+	 * @return false if the record doesn't fit, and the segment is full
+	 */
+	boolean append(long sequence, byte[] payload) throws IOException
+	{
+		int end = size + HEADER + payload.length;
+		if (end > limit)
+			return false;
+		if (end > map.capacity())
+			grow(end);
+
+		crc.reset();
+		crc.update(payload);
+		header.clear();
+		header.putInt(payload.length).putInt((int) crc.getValue()).putLong(sequence).flip();
+
+		int position = size;
+		write(channel, new ByteBuffer[] { header, ByteBuffer.wrap(payload) }, position);
+
+		if (entries == 0 || position - positions[entries - 1] >= Config.JOURNAL_INDEX)
+		{
+			indexEntry.clear();
+			indexEntry.putLong(sequence).putInt(position).flip();
+			write(indexChannel, new ByteBuffer[] { indexEntry }, (long) entries * ENTRY);
+			addEntry(sequence, position);
+		}
+
+		size = position + HEADER + payload.length;
+		last = sequence;
+		return true;
+	}
+
+	/**
+	 * Lengthens the file, at least doubling it, and maps it again.
+	 */
+	private void grow(int needed) throws IOException
+	{
+		int length = Math.min(limit, Math.max(needed, map.capacity() * 2));
+		write(channel, new ByteBuffer[] { ByteBuffer.allocate(1) }, length - 1);
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	}
+
+	private static void write(FileChannel channel, ByteBuffer[] buffers, long position) throws IOException
+	{
+		for (ByteBuffer b: buffers)
+			while (b.hasRemaining())
+				position += channel.write(b, position);
+	}
+
+	private void addEntry(long sequence, int position)
+	{
+		int n = entries;
+		if (n == sequences.length)
+		{
+			sequences = Arrays.copyOf(sequences, n * 2);
+			positions = Arrays.copyOf(positions, n * 2);
+		}
+
+		sequences[n] = sequence;
+		positions[n] = position;
+		entries = n + 1;
+	}
+
+	/**
+	 * Reads messages, in order, from a sequence number on.
+	 * 
+	 * @param from the first sequence number wanted
+	 * @param max the most messages wanted in all
+	 * @param out where to add the messages
+	 */
+	void read(long from, int max, List<Message> out) throws IOException
+	{
+		long end = last;
+		int n = entries;
+		if (from > end || n == 0)
+			return;
+
+		// the nearest index entry at or before the first record wanted
+		long[] s = sequences;
+		int[] p = positions;
+		int i = Arrays.binarySearch(s, 0, n, Math.max(from, base));
+		if (i < 0)
+			i = Math.max(0, -i - 2);
+
+		ByteBuffer view = map.duplicate();
+		int position = p[i];
+		for (long sequence = s[i]; sequence <= end && out.size() < max; sequence++)
+		{
+			int length = view.getInt(position);
+			if (length <= 0 || length > view.capacity() - position - HEADER || view.getLong(position + 8) != sequence)
+				throw new IOException(file + " is damaged at " + position);
+
+			if (sequence >= from)
+			{
+				byte[] payload = new byte[length];
+				view.position(position + HEADER);
+				view.get(payload);
+				out.add(Message.read(new DataInputStream(new ByteArrayInputStream(payload))));
+			}
+			position += HEADER + length;
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last record, or one less than the
+	 *         base if there is none
+	 */
+	long last()
+	{
+		return last;
+	}
+
+	/**
+	 * @return bytes of records written
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return how many records the sparse index points at
+	 */
+	int entries()
+	{
+		return entries;
+	}
+
+	/**
+	 * Forces the records written so far out to the disk. The index isn't
+	 * forced; what it's missing is found again by scanning.
+	 */
+	void force() throws IOException
+	{
+		if (channel.isOpen())
+			channel.force(false);
+	}
+
+	/**
+	 * Closes the files of a segment that won't be written again, forcing it
+	 * out to the disk first unless {@link Config#JOURNAL_SYNC} is none. It can
+	 * still be read, as its mapping stays valid.
+	 */
+	void seal() throws IOException
+	{
+		if (Config.JOURNAL_SYNC != Config.Durability.NONE)
+			force();
+		close();
+	}
+
+	void close() throws IOException
+	{
+		channel.close();
+		if (indexChannel != null)
+			indexChannel.close();
+	}
+
+	void delete() throws IOException
+	{
+		close();
+		file.delete();
+		indexFile.delete();
+	}
+}
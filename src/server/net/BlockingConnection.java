@@ -0,0 +1,473 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import client.Client;
+import commands.BinaryCodec;
+import commands.Command;
+import server.Config;
+import server.SessionThreads;
+import server.Shard;
+import shared.FramedStream;
+import shared.Protocol;
+
+/**
+ * A connection served by a thread that blocks on reads. Both framed clients
+ * and clients that still use a bare pair of object streams are handled here.
+ *
+ * @author Peter Cortes
+ */
+public abstract class BlockingConnection implements Connection
+{
+	/**
+	 * Drains outbound queues; a thread is only busy while a client has
+	 * something waiting to be written
+	 */
+	private static final ExecutorService writers = Executors.newCachedThreadPool(SessionThreads.factory());
+
+	/**
+	 * Bytes a batch can hold before it has to grow
+	 */
+	private static final int BATCH_BUFFER = 8192;
+
+	private final Closeable socket;
+	private final OutboundQueue outbound = new OutboundQueue();
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private volatile boolean open = true;
+	private volatile boolean closing = false;
+
+	/**
+	 * Set while too many of the client's commands are waiting to run, which
+	 * holds up the thread reading from it; guarded by this
+	 */
+	private boolean paused = false;
+
+	protected BlockingConnection(Closeable socket)
+	{
+		this.socket = socket;
+	}
+
+	/**
+	 * Looks at the first bytes sent by a new client to decide which protocol
+	 * it speaks, then completes the matching opening exchange.
+	 * 
+	 * @param socket closed along with the connection
+	 * @param input the client's input stream
+	 * @param output the client's output stream
+	 * @return a connection ready to read the client's name
+	 */
+	public static BlockingConnection open(Closeable socket, InputStream input, OutputStream output) throws IOException
+	{
+		BufferedInputStream buffered = new BufferedInputStream(input);
+		DataInputStream in = new DataInputStream(buffered);
+
+		buffered.mark(4);
+		int first = in.readInt();
+
+		if (first == Protocol.MAGIC)
+			return new Framed(socket, FramedStream.accept(in, output, BinaryCodec::forVersion));
+
+		buffered.reset();
+		if (!Protocol.isObjectStreamHeader(first))
+			throw new IOException(String.format("unknown protocol header %08x", first));
+
+		CountingOutputStream counted = new CountingOutputStream(new BufferedOutputStream(output, BATCH_BUFFER));
+		ObjectOutputStream out = new ObjectOutputStream(counted);
+		out.flush();
+		return new Legacy(socket, counted, out, new ObjectInputStream(buffered));
+	}
+
+	/**
+	 * Blocks until the client sends something.
+	 * 
+	 * @return the next object from the client
+	 */
+	public abstract Object read() throws IOException, ClassNotFoundException;
+
+	/**
+	 * Adds a frame to the batch being written. Only called by the writer.
+	 */
+	protected abstract void write(Frame frame) throws IOException;
+
+	/**
+	 * @return bytes written since the last flush
+	 */
+	protected abstract long pending();
+
+	/**
+	 * Sends the batch to the client.
+	 */
+	protected abstract void flush() throws IOException;
+
+	@Override
+	public void send(Frame frame) throws IOException
+	{
+		if (!isOpen())
+			throw new IOException("connection closed");
+
+		if (!outbound.offer(frame))
+		{
+			closeSocket();
+			throw new IOException("disconnected slow client");
+		}
+
+		scheduleDrain();
+	}
+
+	private void scheduleDrain()
+	{
+		if (!draining.compareAndSet(false, true))
+			return;
+
+		// held back on the timer of the shard sending, if it is one, so that
+		// commands sent close together are written together
+		Shard shard = Shard.current();
+		if (Config.FLUSH_WINDOW > 0 && !closing && shard != null)
+			shard.timer.schedule(Config.FLUSH_WINDOW, () -> writers.execute(this::drain));
+		else
+			writers.execute(this::drain);
+	}
+
+	/**
+	 * Writes queued commands until the queue is empty, flushing once for each
+	 * {@link Config#FLUSH_BYTES} and once at the end.
+	 */
+	private void drain()
+	{
+		try
+		{
+			do
+			{
+				int frames = 0;
+				Frame f;
+				while (open && (f = outbound.poll()) != null)
+				{
+					write(f);
+					frames++;
+
+					if (pending() >= Config.FLUSH_BYTES)
+					{
+						send(frames);
+						frames = 0;
+					}
+				}
+
+				if (frames > 0)
+					send(frames);
+
+				draining.set(false);
+			}
+			while (!outbound.isEmpty() && draining.compareAndSet(false, true));
+
+			if (closing)
+				closeSocket();
+		}
+		catch (IOException e)
+		{
+			draining.set(false);
+			closeSocket();
+		}
+	}
+
+	private void send(int frames) throws IOException
+	{
+		long bytes = pending();
+		flush();
+		WriteStats.record(frames, bytes);
+	}
+
+	@Override
+	public void close()
+	{
+		closing = true;
+
+		// the writer closes the socket once it's done
+		scheduleDrain();
+	}
+
+	private void closeSocket()
+	{
+		open = false;
+		synchronized (this)
+		{
+			notifyAll();
+		}
+
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// nothing left to do with a broken socket
+		}
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return open && !closing;
+	}
+
+	@Override
+	public synchronized void pauseReads(boolean paused)
+	{
+		this.paused = paused;
+		notifyAll();
+	}
+
+	/**
+	 * Blocks the thread reading from the client while reads are paused.
+	 */
+	public synchronized void awaitReads() throws InterruptedIOException
+	{
+		try
+		{
+			while (paused && open)
+				wait();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while paused");
+		}
+	}
+
+	@Override
+	public OutboundQueue outbound()
+	{
+		return outbound;
+	}
+
+	@Override
+	public long retained()
+	{
+		return 0;
+	}
+
+	/**
+	 * @return how many times legacy object streams have been reset
+	 */
+	public static long streamResets()
+	{
+		return Legacy.resets.get();
+	}
+
+	/**
+	 * A client speaking the framed protocol
+	 */
+	private static class Framed extends BlockingConnection
+	{
+		private final FramedStream stream;
+
+		/**
+		 * frames waiting for the next flush, laid end to end
+		 */
+		private byte[] batch = new byte[BATCH_BUFFER];
+		private int batched = 0;
+
+		public Framed(Closeable socket, FramedStream stream)
+		{
+			super(socket);
+			this.stream = stream;
+		}
+
+		@Override
+		public Object read() throws IOException, ClassNotFoundException
+		{
+			return stream.readObject();
+		}
+
+		@Override
+		public int version()
+		{
+			return stream.version;
+		}
+
+		@Override
+		protected void write(Frame frame) throws IOException
+		{
+			// the same bytes go to every framed client
+			byte[] b = frame.bytes(stream.version);
+			if (batched + b.length > batch.length)
+				batch = Arrays.copyOf(batch, Math.max(batch.length * 2, batched + b.length));
+
+			System.arraycopy(b, 0, batch, batched, b.length);
+			batched += b.length;
+		}
+
+		@Override
+		protected long pending()
+		{
+			return batched;
+		}
+
+		@Override
+		protected void flush() throws IOException
+		{
+			stream.writeFrames(batch, batched);
+			stream.flush();
+			batched = 0;
+
+			if (batch.length > BATCH_BUFFER)
+				batch = new byte[BATCH_BUFFER];
+		}
+	}
+
+	/**
+	 * A client that talks through a single long-lived pair of object streams.
+	 * An object stream keeps a reference to everything it has written so that
+	 * repeats can be sent as back references, which over a long session keeps
+	 * every message ever sent to the client on the heap. The stream is reset
+	 * once it has written {@link Config#STREAM_RESET_BYTES} bytes or
+	 * {@link Config#STREAM_RESET_OBJECTS} commands, whichever comes first.
+	 * <p>
+	 * The input stream grows the same way, but only the client can reset it.
+	 */
+	private static class Legacy extends BlockingConnection
+	{
+		private static final AtomicLong resets = new AtomicLong();
+
+		private final CountingOutputStream counted;
+		private final ObjectOutputStream out;
+		private final ObjectInputStream in;
+		private final ReentrantLock writeLock = new ReentrantLock();
+
+		/**
+		 * position of the counted stream and number of commands written at
+		 * the last reset
+		 */
+		private volatile long resetAt;
+		private int written;
+		private long flushedAt;
+
+		public Legacy(Closeable socket, CountingOutputStream counted, ObjectOutputStream out, ObjectInputStream in)
+		{
+			super(socket);
+			this.counted = counted;
+			this.out = out;
+			this.in = in;
+			this.resetAt = counted.count;
+			this.flushedAt = counted.count;
+		}
+
+		@Override
+		public Object read() throws IOException, ClassNotFoundException
+		{
+			return in.readObject();
+		}
+
+		/**
+		 * These clients predate framing, but their objects are serialized
+		 * the same way.
+		 */
+		@Override
+		public int version()
+		{
+			return Protocol.SERIALIZED;
+		}
+
+		@Override
+		protected void write(Frame frame) throws IOException
+		{
+			writeLock.lock();
+			try
+			{
+				// these clients predate batches
+				for (Command<Client> c: frame.commands(version()))
+				{
+					out.writeObject(c);
+
+					if (++written >= Config.STREAM_RESET_OBJECTS || counted.count - resetAt >= Config.STREAM_RESET_BYTES)
+					{
+						out.reset();
+						resets.incrementAndGet();
+						written = 0;
+						resetAt = counted.count;
+					}
+				}
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+
+		@Override
+		protected long pending()
+		{
+			return counted.count - flushedAt;
+		}
+
+		@Override
+		protected void flush() throws IOException
+		{
+			writeLock.lock();
+			try
+			{
+				out.flush();
+				flushedAt = counted.count;
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+
+		/**
+		 * Everything written since the last reset is still referenced by the
+		 * stream, and takes at least as much heap as it took on the wire.
+		 */
+		@Override
+		public long retained()
+		{
+			return counted.count - resetAt;
+		}
+	}
+
+	/**
+	 * Counts the bytes passed through to the socket.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		private volatile long count;
+
+		public CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
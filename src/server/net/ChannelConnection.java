@@ -0,0 +1,501 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import commands.BinaryCodec;
+import commands.Command;
+import server.ChattHypervisor;
+import server.Config;
+import server.MetaClient;
+import server.Server;
+import shared.Codec;
+import shared.Protocol;
+
+/**
+ * A non-blocking connection owned by one {@link EventLoop}. Reads happen on
+ * the loop thread, which decodes whole frames and hands the commands to the
+ * room the client is currently in. Sends may come from any thread; they are
+ * queued and written out by the loop.
+ *
+ * @author Peter Cortes
+ */
+public class ChannelConnection implements Connection, EventLoop.Handler
+{
+	private enum State
+	{
+		HELLO, LOGIN, ACTIVE
+	}
+
+	private final SocketChannel channel;
+	final EventLoop loop;
+	private final ChattHypervisor service;
+	private final NioTransport transport;
+	private SelectionKey key;
+
+	/**
+	 * Size of the read buffer, which only grows for frames that don't fit and
+	 * shrinks back once they have been read
+	 */
+	private static final int READ_BUFFER = 4096;
+
+	private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+	private final OutboundQueue outbound = new OutboundQueue();
+
+	/**
+	 * Most frames handed to the socket in one gathering write
+	 */
+	private static final int MAX_GATHER = 64;
+
+	/**
+	 * Frames taken off the queue for the next write; the first may be partly
+	 * written already if the socket didn't take all of it
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private int gathered = 0;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private volatile boolean open = true;
+	private volatile boolean closing = false;
+	private State state = State.HELLO;
+	private MetaClient user;
+
+	/**
+	 * The protocol version agreed on in the opening exchange
+	 */
+	private int version = Protocol.SERIALIZED;
+	private Codec codec = Protocol.JAVA;
+
+	/**
+	 * Set until the client is logged in or gone, along with the time by which
+	 * the current login stage has to finish
+	 */
+	private boolean handshaking = true;
+	volatile long deadline = System.currentTimeMillis() + Config.LOGIN_SETUP_TIMEOUT;
+
+	/**
+	 * Set while too many of the client's commands are waiting to run: first
+	 * asked for from whichever thread, then applied on the loop, where frames
+	 * already read wait in the read buffer until it is cleared
+	 */
+	private volatile boolean pauseWanted = false;
+	private boolean paused = false;
+
+	ChannelConnection(SocketChannel channel, EventLoop loop, ChattHypervisor service, NioTransport transport)
+	{
+		this.channel = channel;
+		this.loop = loop;
+		this.service = service;
+		this.transport = transport;
+	}
+
+	/**
+	 * Starts listening for reads. Must be called on the owning loop.
+	 */
+	void register() throws IOException
+	{
+		key = loop.register(channel, SelectionKey.OP_READ, this);
+	}
+
+	@Override
+	public void send(Frame frame) throws IOException
+	{
+		if (!isOpen())
+			throw new IOException("connection closed");
+
+		if (!outbound.offer(frame))
+		{
+			loop.execute(() -> closeNow(true));
+			throw new IOException("disconnected slow client");
+		}
+
+		scheduleFlush();
+	}
+
+	@Override
+	public void close()
+	{
+		closing = true;
+		scheduleFlush();
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return open && !closing;
+	}
+
+	@Override
+	public void pauseReads(boolean paused)
+	{
+		pauseWanted = paused;
+
+		// a pause asked for while reading stops the frames after this one
+		if (loop.inLoop())
+			applyPause();
+		else
+			loop.execute(this::applyPause);
+	}
+
+	private void applyPause()
+	{
+		boolean wanted = pauseWanted;
+		if (!open || !key.isValid() || paused == wanted)
+			return;
+
+		paused = wanted;
+		if (paused)
+		{
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+
+		key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		try
+		{
+			processBuffered();
+		}
+		catch (IOException e)
+		{
+			failed(e);
+		}
+	}
+
+	private void scheduleFlush()
+	{
+		if (!flushScheduled.compareAndSet(false, true))
+			return;
+
+		// anything else sent in the meantime goes out in the same write
+		if (Config.FLUSH_WINDOW > 0 && !closing)
+			loop.schedule(Config.FLUSH_WINDOW, this::flush);
+		else
+			loop.execute(this::flush);
+	}
+
+	private void flush()
+	{
+		flushScheduled.set(false);
+		if (!open)
+			return;
+
+		try
+		{
+			if (writePending() && closing)
+				closeNow(false);
+		}
+		catch (IOException e)
+		{
+			closeNow(true);
+		}
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the socket will take, gathering
+	 * up to {@link Config#FLUSH_BYTES} into each write.
+	 * 
+	 * @return true if the queue was drained
+	 */
+	private boolean writePending() throws IOException
+	{
+		while (true)
+		{
+			long bytes = 0;
+			for (int i = 0; i < gathered; i++)
+				bytes += gather[i].remaining();
+
+			ByteBuffer b;
+			while (gathered < MAX_GATHER && bytes < Config.FLUSH_BYTES && (b = next()) != null)
+			{
+				gather[gathered++] = b;
+				bytes += b.remaining();
+			}
+
+			if (gathered == 0)
+				break;
+
+			long written = channel.write(gather, 0, gathered);
+
+			int done = 0;
+			while (done < gathered && !gather[done].hasRemaining())
+				done++;
+
+			System.arraycopy(gather, done, gather, 0, gathered - done);
+			Arrays.fill(gather, gathered - done, gathered, null);
+			gathered -= done;
+			WriteStats.record(done, written);
+
+			if (gathered > 0)
+			{
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return false;
+			}
+		}
+
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		return true;
+	}
+
+	/**
+	 * @return the next queued frame, or null if there are none
+	 */
+	private ByteBuffer next() throws IOException
+	{
+		Frame f = outbound.poll();
+		return f == null ? null : f.buffer(version);
+	}
+
+	@Override
+	public OutboundQueue outbound()
+	{
+		return outbound;
+	}
+
+	@Override
+	public int version()
+	{
+		return version;
+	}
+
+	@Override
+	public long retained()
+	{
+		return in.capacity();
+	}
+
+	@Override
+	public void ready(SelectionKey key) throws IOException
+	{
+		if (key.isReadable())
+			read();
+
+		if (open && key.isValid() && key.isWritable() && writePending() && closing)
+			closeNow(false);
+	}
+
+	@Override
+	public void failed(Exception e)
+	{
+		if (e instanceof StreamCorruptedException && user != null)
+			System.err.println(user.room + " connection to " + user + " corrupted (" + e.getMessage() + ")");
+		else if (!(e instanceof IOException))
+			e.printStackTrace();
+
+		closeNow(true);
+	}
+
+	private void read() throws IOException
+	{
+		if (channel.read(in) < 0)
+		{
+			closeNow(!closing);
+			return;
+		}
+
+		processBuffered();
+	}
+
+	/**
+	 * Consumes what can be of the read buffer, leaving it ready for the next
+	 * read.
+	 */
+	private void processBuffered() throws IOException
+	{
+		in.flip();
+		try
+		{
+			process();
+		}
+		finally
+		{
+			if (in.capacity() > READ_BUFFER && in.remaining() <= READ_BUFFER)
+				in = ByteBuffer.allocate(READ_BUFFER).put(in);
+			else
+				in.compact();
+		}
+	}
+
+	/**
+	 * Consumes every complete frame in the read buffer, until reads are paused.
+	 */
+	private void process() throws IOException
+	{
+		while (open && !paused)
+		{
+			if (state == State.HELLO)
+			{
+				if (in.remaining() < 4)
+					return;
+
+				int first = in.getInt(in.position());
+				if (Protocol.isObjectStreamHeader(first))
+				{
+					handOff();
+					return;
+				}
+				if (first != Protocol.MAGIC)
+					throw new StreamCorruptedException(String.format("unknown protocol header %08x", first));
+				if (in.remaining() < 8)
+					return;
+
+				in.getInt();
+				version = Math.max(Protocol.SERIALIZED, Math.min(in.getInt(), Protocol.LATEST));
+				codec = BinaryCodec.forVersion(version);
+
+				ByteBuffer hello = ByteBuffer.allocate(8);
+				hello.putInt(Protocol.MAGIC).putInt(version).flip();
+				gather[gathered++] = hello;
+				scheduleFlush();
+
+				state = State.LOGIN;
+				deadline = System.currentTimeMillis() + Config.LOGIN_NAME_TIMEOUT;
+				continue;
+			}
+
+			if (in.remaining() < 4)
+				return;
+
+			int length = in.getInt(in.position());
+			if (length < 0 || length > Protocol.MAX_FRAME)
+				throw new StreamCorruptedException("bad frame length " + length);
+
+			if (in.remaining() < length + 4)
+			{
+				// make sure the whole frame will fit once it arrives
+				if (length + 4 > in.capacity())
+				{
+					ByteBuffer bigger = ByteBuffer.allocate(length + 4);
+					bigger.put(in);
+					bigger.flip();
+					in = bigger;
+				}
+				return;
+			}
+
+			in.getInt();
+			Object o = codec.decode(in.array(), in.arrayOffset() + in.position(), length);
+			in.position(in.position() + length);
+
+			dispatch(o);
+		}
+	}
+
+	private void dispatch(Object o) throws IOException
+	{
+		if (state == State.LOGIN)
+		{
+			// a rejected login closes this connection
+			user = service.login(LoginPipeline.name(o), this);
+			state = State.ACTIVE;
+			endHandshake(user != null);
+			return;
+		}
+
+		if (user == null)
+			return;
+
+		@SuppressWarnings("unchecked")
+		Command<Server> command = (Command<Server>) o;
+		user.room.submit(user, command);
+	}
+
+	/**
+	 * Passes a client using bare object streams to a blocking thread, along
+	 * with the bytes already read from it.
+	 */
+	private void handOff()
+	{
+		final byte[] consumed = new byte[in.remaining()];
+		in.get(consumed);
+		open = false;
+		key.cancel();
+		endHandshake(false);
+
+		loop.execute(() -> {
+			try
+			{
+				loop.flushCancelledKeys();
+				channel.configureBlocking(true);
+
+				Socket s = channel.socket();
+				InputStream input = new SequenceInputStream(new ByteArrayInputStream(consumed), s.getInputStream());
+				service.logins.submit(s, input, s.getOutputStream());
+			}
+			catch (IOException e)
+			{
+				closeChannel();
+			}
+		});
+	}
+
+	/**
+	 * Drops a client that took too long over a login stage. Runs on the loop.
+	 */
+	void expire()
+	{
+		if (!handshaking || !open)
+			return;
+
+		service.logins.timedOut();
+		System.err.println("login timed out during " + state.toString().toLowerCase());
+		endHandshake(false);
+		closeNow(false);
+	}
+
+	private void endHandshake(boolean accepted)
+	{
+		if (!handshaking)
+			return;
+
+		handshaking = false;
+		transport.handshakeDone(this);
+		service.logins.release(accepted);
+	}
+
+	private void closeNow(boolean lost)
+	{
+		if (!open)
+			return;
+
+		if (handshaking)
+		{
+			service.logins.failed();
+			endHandshake(false);
+		}
+
+		open = false;
+		if (key != null)
+			key.cancel();
+		closeChannel();
+
+		if (lost && user != null)
+		{
+			user.room.removeUser(user);
+			System.err.println(user.room + " connection to " + user + " lost");
+		}
+	}
+
+	private void closeChannel()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// already gone
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.IOException;
+
+/**
+ * The server's view of the link to one client, independent of how the bytes
+ * actually get there.
+ *
+ * @author Peter Cortes
+ */
+public interface Connection
+{
+	/**
+	 * Queues a frame to be written to the client.
+	 * 
+	 * @param frame the frame to deliver, possibly shared with other clients
+	 * @throws IOException if the connection is no longer usable, or was just
+	 *             dropped for falling too far behind
+	 */
+	public void send(Frame frame) throws IOException;
+
+	/**
+	 * Closes the connection once anything already sent has been written.
+	 */
+	public void close();
+
+	public boolean isOpen();
+
+	/**
+	 * Stops or starts reading commands from the client, while too many it
+	 * sent are waiting to run. Commands already read are still passed on.
+	 * 
+	 * @param paused true to stop
+	 */
+	public void pauseReads(boolean paused);
+
+	/**
+	 * @return the protocol version agreed on with the client, see
+	 *         {@link shared.Protocol}
+	 */
+	public int version();
+
+	/**
+	 * @return the commands waiting to be written to the client
+	 */
+	public OutboundQueue outbound();
+
+	/**
+	 * @return a rough count of the bytes held for this client between writes,
+	 *         not counting its outbound queue
+	 */
+	public long retained();
+}
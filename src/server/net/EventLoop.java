@@ -0,0 +1,213 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import server.Config;
+import server.TimerWheel;
+
+/**
+ * A single thread multiplexing many channels over one selector. Work that
+ * touches a channel's selection key is handed to the loop with
+ * {@link #execute(Runnable)} so that keys are only ever changed by the thread
+ * that owns them.
+ *
+ * @author Peter Cortes
+ */
+public final class EventLoop implements Runnable
+{
+	/**
+	 * Implemented by anything attached to a key registered with a loop
+	 */
+	public interface Handler
+	{
+		/**
+		 * Called on the loop thread when the key is ready for one of the
+		 * operations it's interested in.
+		 */
+		public void ready(SelectionKey key) throws IOException;
+
+		/**
+		 * Called on the loop thread when ready threw or the loop shut down.
+		 */
+		public void failed(Exception e);
+	}
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final String name;
+	private Thread thread;
+
+	/**
+	 * Tasks run on the loop thread at a later time, ticked between selects
+	 */
+	private final TimerWheel timer;
+
+	public EventLoop(String name) throws IOException
+	{
+		this.name = name;
+		this.selector = Selector.open();
+		this.timer = new TimerWheel(Config.FINE_TIMER_TICK, Config.TIMER_WHEEL, name, () ->
+		{
+			if (!inLoop())
+				selector.wakeup();
+		});
+	}
+
+	public void start()
+	{
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * @return true if called from this loop's thread
+	 */
+	public boolean inLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues a task to run on the loop thread, waking the selector if needed.
+	 * 
+	 * @param task the work to run
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		if (!inLoop())
+			selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop thread every so often, for as long as the loop
+	 * runs.
+	 * 
+	 * @param millis time between runs
+	 * @param task the work to repeat
+	 */
+	public void every(long millis, Runnable task)
+	{
+		timer.every(millis, task);
+	}
+
+	/**
+	 * Runs a task once on the loop thread after a delay.
+	 * 
+	 * @param millis time to wait
+	 * @param task the work to run
+	 */
+	public void schedule(long millis, Runnable task)
+	{
+		timer.schedule(millis, task);
+	}
+
+	/**
+	 * Registers a channel with this loop. Must be called on the loop thread.
+	 * 
+	 * @return the new selection key
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException
+	{
+		channel.configureBlocking(false);
+		return channel.register(selector, ops, handler);
+	}
+
+	/**
+	 * Forces cancelled keys to be deregistered. Must be called on the loop
+	 * thread, outside of key processing.
+	 */
+	void flushCancelledKeys() throws IOException
+	{
+		selector.selectNow();
+	}
+
+	public void run()
+	{
+		while (selector.isOpen())
+		{
+			try
+			{
+				runTasks();
+				long wait = runTimed();
+
+				// timed tasks may have queued more, which nothing will wake
+				// the selector for
+				if (tasks.isEmpty())
+					selector.select(wait);
+				else
+					selector.selectNow();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					Handler h = (Handler) key.attachment();
+					try
+					{
+						if (key.isValid())
+							h.ready(key);
+					}
+					catch (Exception e)
+					{
+						key.cancel();
+						h.failed(e);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				System.err.println(name + " selector failed (" + e.getMessage() + ")");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Runs the timed tasks that are due.
+	 * 
+	 * @return milliseconds until more may be due, at least 1
+	 */
+	private long runTimed()
+	{
+		while (timer.untilTick() <= 0)
+			timer.tick();
+
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.untilDue() + 999999));
+	}
+
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				System.err.println(name + " task failed");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
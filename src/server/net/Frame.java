@@ -0,0 +1,119 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import client.Client;
+import commands.BinaryCodec;
+import commands.Command;
+import commands.serversent.MessageBatchCommand;
+import commands.serversent.MessagePackageCommand;
+import commands.serversent.RoomPackageCommand;
+import commands.serversent.RoomPageCommand;
+import shared.Codec;
+import shared.Message;
+import shared.Protocol;
+import shared.RoomPackage;
+
+/**
+ * A command on its way to one or more clients. The command is encoded the
+ * first time a framed connection asks for its bytes, and every later
+ * recipient speaking the same protocol version gets the same bytes, so a
+ * broadcast costs one encoding per version no matter how many members the
+ * room has.
+ *
+ * @author Peter Cortes
+ */
+public final class Frame
+{
+	public final Command<Client> command;
+	private final byte[][] encoded = new byte[Protocol.LATEST + 1][];
+
+	public Frame(Command<Client> command)
+	{
+		this.command = command;
+	}
+
+	/**
+	 * @param version the recipient's protocol version
+	 * @return the encoded frame, length prefix included, or several frames end
+	 *         to end for a batch the recipient can't read; callers must not
+	 *         modify it
+	 * @throws IOException if the command can't be encoded
+	 */
+	public synchronized byte[] bytes(int version) throws IOException
+	{
+		if (encoded[version] == null)
+		{
+			Codec codec = BinaryCodec.forVersion(version);
+			List<Command<Client>> commands = commands(version);
+
+			if (commands.size() == 1)
+				encoded[version] = Protocol.frame(codec, commands.get(0));
+			else
+			{
+				ByteArrayOutputStream frames = new ByteArrayOutputStream();
+				for (Command<Client> c: commands)
+					frames.write(Protocol.frame(codec, c));
+
+				encoded[version] = frames.toByteArray();
+			}
+		}
+
+		return encoded[version];
+	}
+
+	/**
+	 * A batch of messages is split into one command per message for clients
+	 * that can't read batches, and serialized clients get rooms with their
+	 * counts written into their names; anything else goes out as it is.
+	 * 
+	 * @param version the recipient's protocol version
+	 * @return the commands to deliver, in order
+	 */
+	public List<Command<Client>> commands(int version)
+	{
+		if (version < Protocol.BINARY && command instanceof RoomPackageCommand)
+		{
+			LinkedList<RoomPackage> rooms = new LinkedList<RoomPackage>();
+			for (RoomPackage r: ((RoomPackageCommand) command).rooms)
+				rooms.add(r.withoutCounts());
+			return Collections.<Command<Client>> singletonList(new RoomPackageCommand(rooms));
+		}
+
+		if (version < Protocol.BINARY && command instanceof RoomPageCommand)
+		{
+			RoomPageCommand page = (RoomPageCommand) command;
+			ArrayList<RoomPackage> rooms = new ArrayList<RoomPackage>(page.rooms.size());
+			for (RoomPackage r: page.rooms)
+				rooms.add(r.withoutCounts());
+			return Collections.<Command<Client>> singletonList(new RoomPageCommand(page.offset, page.total, rooms));
+		}
+
+		if (version >= Protocol.BATCHES || !(command instanceof MessageBatchCommand))
+			return Collections.singletonList(command);
+
+		List<Command<Client>> out = new ArrayList<Command<Client>>();
+		for (Message m: ((MessageBatchCommand) command).messages)
+			out.add(new MessagePackageCommand(m));
+
+		return out;
+	}
+
+	/**
+	 * @param version the recipient's protocol version
+	 * @return a read-only view of the encoded frame with its own position
+	 */
+	public ByteBuffer buffer(int version) throws IOException
+	{
+		return ByteBuffer.wrap(bytes(version)).asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import server.ChattHypervisor;
+import server.Config;
+import server.SessionThreads;
+
+/**
+ * Logs in new clients without holding up the thread that accepts them. Each
+ * login goes through the same stages: stream setup, reading the client's
+ * name, then registering it with the hypervisor, which checks for duplicates
+ * and sends the response. Setup and the name read each have their own
+ * timeout, and the number of logins waiting or in progress is bounded; a
+ * client arriving when the pipeline is full is disconnected straight away.
+ * 
+ * Blocking connections are run through the stages here on a small pool of
+ * session threads. Event loop connections go through the same stages
+ * without blocking, and only report to the counters kept here.
+ *
+ * @author Peter Cortes
+ */
+public class LoginPipeline
+{
+	private final ChattHypervisor service;
+	private final ThreadPoolExecutor workers;
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger refused = new AtomicInteger();
+	private final AtomicInteger timedOut = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	public LoginPipeline(ChattHypervisor service)
+	{
+		this.service = service;
+
+		int threads = Math.max(1, Config.LOGIN_THREADS);
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(Math.max(1, Config.MAX_PENDING_LOGINS - threads)),
+				SessionThreads.factory());
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a blocking client for login. Never blocks the caller.
+	 * 
+	 * @param socket the client's socket, closed if the login fails
+	 * @param in the client's input stream
+	 * @param out the client's output stream
+	 */
+	public void submit(Socket socket, InputStream in, OutputStream out)
+	{
+		pending.incrementAndGet();
+		try
+		{
+			workers.execute(() -> {
+				try
+				{
+					login(socket, in, out);
+				}
+				finally
+				{
+					pending.decrementAndGet();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			pending.decrementAndGet();
+			refused();
+			close(socket);
+		}
+	}
+
+	/**
+	 * Runs one blocking client through every stage.
+	 */
+	private void login(Socket socket, InputStream in, OutputStream out)
+	{
+		String stage = "setup";
+		try
+		{
+			socket.setSoTimeout(Config.LOGIN_SETUP_TIMEOUT);
+			BlockingConnection c = BlockingConnection.open(socket, in, out);
+
+			stage = "name";
+			socket.setSoTimeout(Config.LOGIN_NAME_TIMEOUT);
+			String clientName = name(c.read());
+			socket.setSoTimeout(0);
+
+			stage = "register";
+			if (service.login(clientName, c) != null)
+				completed.incrementAndGet();
+		}
+		catch (SocketTimeoutException e)
+		{
+			timedOut.incrementAndGet();
+			System.err.println("login timed out during " + stage);
+			close(socket);
+		}
+		catch (IOException | ClassNotFoundException e)
+		{
+			failed.incrementAndGet();
+			System.err.println("login failed during " + stage + " (" + e.getMessage() + ")");
+			close(socket);
+		}
+		catch (RuntimeException e)
+		{
+			failed.incrementAndGet();
+			System.err.println("login failed during " + stage + " (" + e + ")");
+			close(socket);
+		}
+	}
+
+	/**
+	 * @param o what a client sent as its name
+	 * @return the name
+	 * @throws StreamCorruptedException if it isn't a name
+	 */
+	static String name(Object o) throws StreamCorruptedException
+	{
+		if (!(o instanceof String) || ((String) o).isEmpty())
+			throw new StreamCorruptedException("not a name");
+
+		return (String) o;
+	}
+
+	private void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// nothing more to clean up
+		}
+	}
+
+	/**
+	 * Claims a place for a login that will be run elsewhere.
+	 * 
+	 * @return false if the pipeline is full and the client should be dropped
+	 */
+	public boolean reserve()
+	{
+		if (pending.incrementAndGet() > Config.MAX_PENDING_LOGINS)
+		{
+			pending.decrementAndGet();
+			refused();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gives back a place claimed with {@link #reserve()}.
+	 * 
+	 * @param accepted true if the client was logged in
+	 */
+	public void release(boolean accepted)
+	{
+		pending.decrementAndGet();
+		if (accepted)
+			completed.incrementAndGet();
+	}
+
+	private void refused()
+	{
+		if (refused.incrementAndGet() % 1000 == 1)
+			System.err.println("login pipeline full, refusing clients");
+	}
+
+	public void timedOut()
+	{
+		timedOut.incrementAndGet();
+	}
+
+	public void failed()
+	{
+		failed.incrementAndGet();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d pending, %d completed, %d refused, %d timed out, %d failed", pending.get(),
+				completed.get(), refused.get(), timedOut.get(), failed.get());
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import server.ChattHypervisor;
+import server.Handoff;
+
+/**
+ * Accepts clients on a non-blocking server socket and spreads them over a
+ * fixed set of event loops. The first loop also does the accepting.
+ *
+ * @author Peter Cortes
+ */
+public class NioTransport implements EventLoop.Handler
+{
+	private final ChattHypervisor service;
+	private final ServerSocketChannel server;
+	private final EventLoop[] loops;
+	private int next = 0;
+
+	/**
+	 * Connections that haven't finished logging in
+	 */
+	private final Set<ChannelConnection> handshakes = Collections.newSetFromMap(new ConcurrentHashMap<ChannelConnection, Boolean>());
+
+	/**
+	 * Binds the listening socket; nothing is accepted until {@link #start()}.
+	 * 
+	 * @param service the hypervisor new clients log in to
+	 * @param port the port to listen on
+	 * @param loopCount how many event loop threads to run
+	 */
+	public NioTransport(ChattHypervisor service, int port, int loopCount) throws IOException
+	{
+		this.service = service;
+		this.server = ServerSocketChannel.open();
+		Handoff.sharePort(server);
+		server.bind(new InetSocketAddress(port));
+
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new EventLoop("chatt-loop-" + i);
+	}
+
+	public void start()
+	{
+		for (EventLoop l: loops)
+			l.start();
+
+		loops[0].execute(() -> {
+			try
+			{
+				loops[0].register(server, SelectionKey.OP_ACCEPT, this);
+			}
+			catch (IOException e)
+			{
+				failed(e);
+			}
+		});
+
+		loops[0].every(250, this::expireHandshakes);
+	}
+
+	/**
+	 * Closes the listening socket, leaving connected clients be.
+	 */
+	public void stopAccepting()
+	{
+		loops[0].execute(() -> {
+			try
+			{
+				server.close();
+			}
+			catch (IOException e)
+			{
+				// not accepting either way
+			}
+		});
+	}
+
+	/**
+	 * Asks the owning loop to drop every connection that is past the deadline
+	 * for its current login stage.
+	 */
+	private void expireHandshakes()
+	{
+		long now = System.currentTimeMillis();
+		for (ChannelConnection c: handshakes)
+			if (c.deadline < now)
+				c.loop.execute(c::expire);
+	}
+
+	/**
+	 * Called by a connection once it's logged in or gone.
+	 */
+	void handshakeDone(ChannelConnection c)
+	{
+		handshakes.remove(c);
+	}
+
+	@Override
+	public void ready(SelectionKey key)
+	{
+		try
+		{
+			SocketChannel c;
+			while ((c = server.accept()) != null)
+			{
+				if (!service.logins.reserve())
+				{
+					c.close();
+					continue;
+				}
+
+				c.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				EventLoop loop = loops[next++ % loops.length];
+				ChannelConnection connection = new ChannelConnection(c, loop, service, this);
+				handshakes.add(connection);
+				loop.execute(() -> {
+					try
+					{
+						connection.register();
+					}
+					catch (IOException e)
+					{
+						connection.failed(e);
+					}
+				});
+			}
+		}
+		catch (IOException e)
+		{
+			// keep listening, this is usually a client that gave up
+			System.err.println("accept failed (" + e.getMessage() + ")");
+		}
+	}
+
+	@Override
+	public void failed(Exception e)
+	{
+		System.err.println("stopped accepting clients");
+		e.printStackTrace();
+	}
+
+	@Override
+	public String toString()
+	{
+		return loops.length + " event loops on " + server.socket().getLocalPort();
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import client.Client;
+import commands.Command;
+import commands.serversent.MessageBatchCommand;
+import commands.serversent.MessagePackageCommand;
+import commands.serversent.RoomDirectoryCommand;
+import commands.serversent.RoomPackageCommand;
+import server.Config;
+import server.Config.OverflowPolicy;
+
+/**
+ * The bounded queue of commands waiting to be written to one client. Rooms
+ * only ever add to it, so a client that reads slowly holds up nobody but
+ * itself. When the queue is full the configured {@link OverflowPolicy}s are
+ * tried in order until one makes room.
+ *
+ * @author Peter Cortes
+ */
+public class OutboundQueue
+{
+	private static final AtomicLong totalDropped = new AtomicLong();
+	private static final AtomicLong totalCoalesced = new AtomicLong();
+	private static final AtomicLong totalDisconnected = new AtomicLong();
+
+	private final ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final int capacity;
+
+	private int highWater = 0;
+	private long dropped = 0;
+	private long coalesced = 0;
+
+	public OutboundQueue()
+	{
+		this(Config.OUTBOUND_CAPACITY);
+	}
+
+	public OutboundQueue(int capacity)
+	{
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Adds a frame to the end of the queue, applying the overflow policies if
+	 * it's full.
+	 * 
+	 * @param frame the frame to queue
+	 * @return false if the client should be disconnected
+	 */
+	public boolean offer(Frame frame)
+	{
+		lock.lock();
+		try
+		{
+			if (queue.size() >= capacity && !makeRoom(frame.command))
+				return false;
+
+			queue.addLast(frame);
+			highWater = Math.max(highWater, queue.size());
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the overflow policies in order. Called with the lock held.
+	 * 
+	 * @return false if the client should be disconnected
+	 */
+	private boolean makeRoom(Command<Client> incoming)
+	{
+		for (OverflowPolicy p: Config.OVERFLOW_POLICIES)
+		{
+			switch (p)
+			{
+				case COALESCE_ROOM_LISTS:
+					// only the newest room list matters; a client that misses
+					// a change is sent it again from the version it holds
+					if ((incoming instanceof RoomPackageCommand && removeOldest(RoomPackageCommand.class))
+							|| (incoming instanceof RoomDirectoryCommand && removeOldest(RoomDirectoryCommand.class)))
+					{
+						coalesced++;
+						totalCoalesced.incrementAndGet();
+						return true;
+					}
+					break;
+
+				case DROP_OLDEST_CHAT:
+					// busy rooms send their chat in batches
+					if (removeOldest(MessagePackageCommand.class, MessageBatchCommand.class))
+					{
+						dropped++;
+						totalDropped.incrementAndGet();
+						return true;
+					}
+					break;
+
+				case DISCONNECT:
+					totalDisconnected.incrementAndGet();
+					return false;
+			}
+		}
+
+		// nothing was allowed to give way, so the oldest command is lost
+		dropped++;
+		totalDropped.incrementAndGet();
+		queue.pollFirst();
+		return true;
+	}
+
+	/**
+	 * Removes the oldest queued command of any of the types given.
+	 * 
+	 * @return false if there was none
+	 */
+	private boolean removeOldest(Class<?>... types)
+	{
+		for (Iterator<Frame> it = queue.iterator(); it.hasNext();)
+		{
+			Command<Client> command = it.next().command;
+			for (Class<?> type: types)
+			{
+				if (type.isInstance(command))
+				{
+					it.remove();
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the oldest queued frame, or null if there are none
+	 */
+	public Frame poll()
+	{
+		lock.lock();
+		try
+		{
+			return queue.pollFirst();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return depth() == 0;
+	}
+
+	/**
+	 * @return the number of commands waiting to be written
+	 */
+	public int depth()
+	{
+		lock.lock();
+		try
+		{
+			return queue.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the deepest this queue has been
+	 */
+	public int highWater()
+	{
+		return highWater;
+	}
+
+	/**
+	 * @return chat messages and other commands this client never got
+	 */
+	public long dropped()
+	{
+		return dropped;
+	}
+
+	/**
+	 * @return room lists replaced by a newer one before being written
+	 */
+	public long coalesced()
+	{
+		return coalesced;
+	}
+
+	/**
+	 * @return a summary of the counters across every client
+	 */
+	public static String totals()
+	{
+		return String.format("%d dropped, %d coalesced, %d slow clients disconnected", totalDropped.get(),
+				totalCoalesced.get(), totalDisconnected.get());
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("depth %d (max %d), %d dropped, %d coalesced", depth(), highWater, dropped, coalesced);
+	}
+}
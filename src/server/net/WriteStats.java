@@ -0,0 +1,48 @@
+/**
+ * 
+ */
+package server.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the writes issued to client sockets and what went out in them, to
+ * show how well commands are being batched.
+ *
+ * @author Peter Cortes
+ */
+public final class WriteStats
+{
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong frames = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+
+	private WriteStats()
+	{}
+
+	/**
+	 * Records one write to a socket.
+	 * 
+	 * @param frameCount commands completed by the write
+	 * @param byteCount bytes written
+	 */
+	public static void record(int frameCount, long byteCount)
+	{
+		writes.incrementAndGet();
+		frames.addAndGet(frameCount);
+		bytes.addAndGet(byteCount);
+	}
+
+	/**
+	 * Describes the writes since the last call and starts counting afresh.
+	 */
+	public static String drain()
+	{
+		long w = writes.getAndSet(0);
+		long f = frames.getAndSet(0);
+		long b = bytes.getAndSet(0);
+
+		return String.format("%d frames in %d writes (%.2f frames, %.0f bytes per write)", f, w,
+				w == 0 ? 0.0 : (double) f / w, w == 0 ? 0.0 : (double) b / w);
+	}
+}
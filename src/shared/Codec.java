@@ -0,0 +1,31 @@
+/**
+ * 
+ */
+package shared;
+
+import java.io.IOException;
+
+/**
+ * Turns the objects sent over a framed connection into frame payloads and
+ * back. Each protocol version has its own codec.
+ *
+ * @author Peter Cortes
+ */
+public interface Codec
+{
+	/**
+	 * @param o the object to encode
+	 * @return the frame payload, without the length prefix
+	 * @throws IOException if the object can't be encoded
+	 */
+	public byte[] encode(Object o) throws IOException;
+
+	/**
+	 * @param payload buffer holding a frame payload
+	 * @param offset where the payload starts
+	 * @param length how many bytes the payload spans
+	 * @return the object the payload describes
+	 * @throws IOException if the payload is malformed
+	 */
+	public Object decode(byte[] payload, int offset, int length) throws IOException;
+}
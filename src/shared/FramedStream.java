@@ -0,0 +1,181 @@
+/**
+ * 
+ */
+package shared;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * A blocking reader and writer of protocol frames. This replaces the pair of
+ * object streams on the client side, and is used by the server for framed
+ * clients when it runs with blocking connections.
+ *
+ * @author Peter Cortes
+ */
+public class FramedStream implements Closeable
+{
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	/**
+	 * Guards writes; a lock rather than a monitor so that a virtual thread
+	 * blocked in a write doesn't pin its carrier
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * The protocol version agreed on by both ends
+	 */
+	public final int version;
+	private final Codec codec;
+
+	private FramedStream(DataInputStream in, DataOutputStream out, int version, Codec codec)
+	{
+		this.in = in;
+		this.out = out;
+		this.version = version;
+		this.codec = codec;
+	}
+
+	/**
+	 * Client side of the opening exchange: announces the newest version this
+	 * program speaks and waits for the server to pick one.
+	 * 
+	 * @param input the socket's input stream
+	 * @param output the socket's output stream
+	 * @param codecs gives the codec for each protocol version
+	 * @return a stream ready to carry frames
+	 * @throws IOException if the server doesn't speak the framed protocol
+	 */
+	public static FramedStream connect(InputStream input, OutputStream output, IntFunction<Codec> codecs)
+			throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+		DataInputStream in = new DataInputStream(input);
+
+		out.writeInt(Protocol.MAGIC);
+		out.writeInt(Protocol.LATEST);
+		out.flush();
+
+		if (in.readInt() != Protocol.MAGIC)
+			throw new StreamCorruptedException("server doesn't speak the chatt protocol");
+
+		int version = in.readInt();
+		return new FramedStream(in, out, version, codecs.apply(version));
+	}
+
+	/**
+	 * Server side of the opening exchange. The caller has already read
+	 * {@link Protocol#MAGIC} from the stream.
+	 * 
+	 * @param in the client's input stream, positioned at the version
+	 * @param output the client's output stream
+	 * @param codecs gives the codec for each protocol version
+	 * @return a stream ready to carry frames
+	 * @throws IOException if the exchange fails
+	 */
+	public static FramedStream accept(DataInputStream in, OutputStream output, IntFunction<Codec> codecs)
+			throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+		int version = Math.max(Protocol.SERIALIZED, Math.min(in.readInt(), Protocol.LATEST));
+
+		out.writeInt(Protocol.MAGIC);
+		out.writeInt(version);
+		out.flush();
+
+		return new FramedStream(in, out, version, codecs.apply(version));
+	}
+
+	/**
+	 * Writes one object as a single frame. Frames written from different
+	 * threads never interleave.
+	 * 
+	 * @param o the object to send
+	 */
+	public void writeObject(Object o) throws IOException
+	{
+		writeFrame(Protocol.frame(codec, o));
+	}
+
+	/**
+	 * Writes a frame that was encoded ahead of time.
+	 * 
+	 * @param frame a complete frame, length prefix included
+	 */
+	public void writeFrame(byte[] frame) throws IOException
+	{
+		writeFrames(frame, frame.length);
+	}
+
+	/**
+	 * Writes several frames that were encoded ahead of time and laid end to
+	 * end, so that they reach the stream in one piece.
+	 * 
+	 * @param frames complete frames, length prefixes included
+	 * @param length number of bytes of frames to write
+	 */
+	public void writeFrames(byte[] frames, int length) throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			out.write(frames, 0, length);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	public void flush() throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			out.flush();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until a whole frame has arrived and returns the object it holds.
+	 * 
+	 * @return the next object sent by the other end
+	 */
+	public Object readObject() throws IOException, ClassNotFoundException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > Protocol.MAX_FRAME)
+			throw new StreamCorruptedException("bad frame length " + length);
+
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return codec.decode(payload, 0, length);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			out.close();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
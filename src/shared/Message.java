@@ -3,6 +3,9 @@
  */
 package shared;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.time.LocalTime;
 
@@ -59,6 +62,43 @@ public class Message implements Serializable
 		meMessage = true;
 	}
 
+	private Message(String sender, String message, String time, boolean me, boolean sys)
+	{
+		this.sender = sender;
+		this.message = message;
+		this.time = time;
+
+		meMessage = me;
+		sysMessage = sys;
+	}
+
+	/**
+	 * Writes this message in the binary protocol's format.
+	 * 
+	 * @param out where to write the message
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeByte((meMessage ? 1 : 0) | (sysMessage ? 2 : 0) | (sender != null ? 4 : 0));
+		if (sender != null)
+			Protocol.writeString(out, sender);
+		Protocol.writeString(out, message);
+		Protocol.writeString(out, time);
+	}
+
+	/**
+	 * Reads a message written by {@link #write(DataOutput)}.
+	 * 
+	 * @param in where to read the message from
+	 * @return the message
+	 */
+	public static Message read(DataInput in) throws IOException
+	{
+		int flags = in.readByte();
+		String sender = (flags & 4) != 0 ? Protocol.readString(in) : null;
+		return new Message(sender, Protocol.readString(in), Protocol.readString(in), (flags & 1) != 0, (flags & 2) != 0);
+	}
+
 	@Override
 	public String toString()
 	{
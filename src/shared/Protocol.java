@@ -0,0 +1,204 @@
+/**
+ * 
+ */
+package shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and helpers for the framed wire protocol. A framed client opens
+ * its connection by writing {@link #MAGIC} followed by the highest protocol
+ * version it understands, and the server answers with the same magic and the
+ * version it picked. After that every object travels as a four byte length
+ * followed by that many bytes of payload, encoded by the {@link Codec} for the
+ * agreed version.
+ * 
+ * Clients that open with a plain ObjectOutputStream header are still accepted
+ * by the server, see {@link #isObjectStreamHeader(int)}.
+ *
+ * @author Peter Cortes
+ */
+public final class Protocol
+{
+	/**
+	 * The first four bytes written by a framed client ("CHAT")
+	 */
+	public static final int MAGIC = 0x43484154;
+
+	/**
+	 * Each frame holds one object written by its own ObjectOutputStream
+	 */
+	public static final int SERIALIZED = 1;
+
+	/**
+	 * Each frame holds a one byte type tag followed by hand-encoded fields
+	 */
+	public static final int BINARY = 2;
+
+	/**
+	 * As {@link #BINARY}, and the server may send several chat messages in one
+	 * frame. Older clients get the same messages one frame each.
+	 */
+	public static final int BATCHES = 3;
+
+	/**
+	 * As {@link #BATCHES}, and the room directory is sent as changes since
+	 * the version the client acknowledged. Older clients get whole room
+	 * lists.
+	 */
+	public static final int DIRECTORY_DELTAS = 4;
+
+	/**
+	 * As {@link #DIRECTORY_DELTAS}, and each room carries its member counts
+	 * as numbers. Older clients get the member count written into the room's
+	 * name.
+	 */
+	public static final int ROOM_COUNTS = 5;
+
+	public static final int LATEST = ROOM_COUNTS;
+
+	/**
+	 * Frames larger than this are treated as a corrupted connection
+	 */
+	public static final int MAX_FRAME = 1 << 20;
+
+	/**
+	 * The codec for {@link #SERIALIZED}
+	 */
+	public static final Codec JAVA = new Codec()
+	{
+		@Override
+		public byte[] encode(Object o) throws IOException
+		{
+			return serialize(o);
+		}
+
+		@Override
+		public Object decode(byte[] payload, int offset, int length) throws IOException
+		{
+			try
+			{
+				return deserialize(payload, offset, length);
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new StreamCorruptedException("unknown class " + e.getMessage());
+			}
+		}
+	};
+
+	private Protocol()
+	{}
+
+	/**
+	 * @param first the first four bytes read from a new connection
+	 * @return true if the peer opened with an ObjectOutputStream header
+	 */
+	public static boolean isObjectStreamHeader(int first)
+	{
+		return (first >>> 16) == 0xACED;
+	}
+
+	/**
+	 * Serializes a single object with a fresh ObjectOutputStream, so the result
+	 * can be read back without any knowledge of earlier frames.
+	 * 
+	 * @param o the object to serialize
+	 * @return the serialized bytes
+	 * @throws IOException if the object can't be serialized
+	 */
+	public static byte[] serialize(Object o) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeObject(o);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param payload buffer holding a serialized object
+	 * @param offset where the object starts
+	 * @param length how many bytes the object spans
+	 * @return the object read from the buffer
+	 */
+	public static Object deserialize(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException
+	{
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length)))
+		{
+			return in.readObject();
+		}
+	}
+
+	/**
+	 * @param codec the codec for the connection's protocol version
+	 * @param o the object to send
+	 * @return a complete frame, length prefix included
+	 * @throws IOException if the object can't be encoded
+	 */
+	public static byte[] frame(Codec codec, Object o) throws IOException
+	{
+		byte[] payload = codec.encode(o);
+		byte[] frame = new byte[payload.length + 4];
+		putInt(frame, 0, payload.length);
+		System.arraycopy(payload, 0, frame, 4, payload.length);
+		return frame;
+	}
+
+	/**
+	 * Writes a string of any length, or null, as an int count of bytes (-1 for
+	 * null) followed by the string in UTF-8. Used instead of
+	 * {@link DataOutput#writeUTF(String)}, which can't write either a string
+	 * over 64K bytes or null, for text that may have come from a client of an
+	 * older protocol version.
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 */
+	public static String readString(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		if (length < 0 || length > MAX_FRAME)
+			throw new StreamCorruptedException("bad string length " + length);
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a big-endian int into a byte array
+	 */
+	public static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+}
@@ -3,6 +3,9 @@
  */
 package shared;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -16,10 +19,79 @@ public class RoomPackage implements Serializable
 	public final String name;
 	public final int id;
 
+	/**
+	 * How many clients are in the room, or -1 if unknown
+	 */
+	public final int members;
+
+	/**
+	 * How many of the members have sent something since joining, or -1 if
+	 * unknown
+	 */
+	public final int active;
+
+	/**
+	 * A room whose counts aren't known, as sent before
+	 * {@link Protocol#ROOM_COUNTS}, when the count was part of the name
+	 */
 	public RoomPackage(String name, int id)
+	{
+		this(name, id, -1, -1);
+	}
+
+	public RoomPackage(String name, int id, int members, int active)
 	{
 		this.name = name;
 		this.id = id;
+		this.members = members;
+		this.active = active;
+	}
+
+	/**
+	 * @return this room as clients before {@link Protocol#ROOM_COUNTS} show
+	 *         it, with the member count written into the name
+	 */
+	public RoomPackage withoutCounts()
+	{
+		return members < 0 ? this : new RoomPackage(toString(), id);
+	}
+
+	/**
+	 * Writes this room in the binary protocol's format.
+	 * 
+	 * @param out where to write the room
+	 * @param counts whether the recipient reads the counts, see
+	 *            {@link Protocol#ROOM_COUNTS}
+	 */
+	public void write(DataOutput out, boolean counts) throws IOException
+	{
+		out.writeInt(id);
+		if (counts)
+		{
+			Protocol.writeString(out, name);
+			out.writeInt(members);
+			out.writeInt(active);
+		}
+		else
+			Protocol.writeString(out, toString());
+	}
+
+	/**
+	 * Reads a room written by {@link #write(DataOutput, boolean)}.
+	 * 
+	 * @param in where to read the room from
+	 * @param counts whether the counts were written
+	 * @return the room
+	 */
+	public static RoomPackage read(DataInput in, boolean counts) throws IOException
+	{
+		int id = in.readInt();
+		String name = Protocol.readString(in);
+		if (!counts)
+			return new RoomPackage(name, id);
+
+		int members = in.readInt();
+		return new RoomPackage(name, id, members, in.readInt());
 	}
 
 	/**
@@ -31,6 +103,8 @@ public class RoomPackage implements Serializable
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + id;
+		result = prime * result + members;
+		result = prime * result + active;
 		result = prime * result + ((name == null) ? 0 : name.hashCode());
 		return result;
 	}
@@ -48,7 +122,7 @@ public class RoomPackage implements Serializable
 		if (getClass() != obj.getClass())
 			return false;
 		RoomPackage other = (RoomPackage) obj;
-		if (id != other.id)
+		if (id != other.id || members != other.members || active != other.active)
 			return false;
 		if (name == null)
 		{
@@ -63,7 +137,7 @@ public class RoomPackage implements Serializable
 	@Override
 	public String toString()
 	{
-		return name;
+		return members < 0 ? name : members + ": " + name;
 	}
 
 	public String toLongString()